@@ -0,0 +1,100 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.easibeacon.protocol;
+
+/**
+ * Time per packet of the AD structure walk, against the former check of the iBeacon frame at fixed offsets.
+ * The walk is also measured on records where the flags are missing or the frame comes after other structures,
+ * which the fixed offsets did not find.
+ * 
+ * @author inakivazquez
+ *
+ */
+public final class AdStructuresBench {
+
+	private static final int PACKETS = 1000000;
+
+	public static void main(String[] args){
+		final byte[][] records = new byte[64][];
+		for(int i=0;i<records.length;i++)
+			records[i] = Bench.iBeaconRecord(i, i, i, -59);
+		final byte[][] moved = new byte[64][];
+		for(int i=0;i<moved.length;i++)
+			moved[i] = movedFrame(records[i]);
+		final AdStructures structures = new AdStructures();
+		final IBeaconAdvertisement advertisement = new IBeaconAdvertisement();
+		advertisement.addDecoder(new IBeaconDecoder());
+
+		new Bench(){
+			@Override
+			long run(int i) {
+				return legacyMatch(records[i & 63]);
+			}
+		}.measure("fixed offsets", PACKETS);
+
+		new Bench(){
+			@Override
+			long run(int i) {
+				return structures.parse(records[i & 63]);
+			}
+		}.measure("AdStructures.parse", PACKETS);
+
+		new Bench(){
+			@Override
+			long run(int i) {
+				return advertisement.wrap(records[i & 63]) ? advertisement.getMajorMinor() : 0;
+			}
+		}.measure("IBeaconAdvertisement.wrap", PACKETS);
+
+		new Bench(){
+			@Override
+			long run(int i) {
+				return advertisement.wrap(moved[i & 63]) ? advertisement.getMajorMinor() : 0;
+			}
+		}.measure("IBeaconAdvertisement.wrap, moved frame", PACKETS);
+	}
+
+	/**
+	 * The former recognition of the frame, with the reads of major, minor and power
+	 */
+	static long legacyMatch(byte[] data){
+		if(data[0]==0x02 && data[1]==0x01 && data[4]==(byte)0xFF && data[7]==0x02){
+			int offset = IBeaconEngine.ADV_PREFIX_LENGTH + IBeaconEngine.ADV_UUID_LENGTH;
+			int major = ((data[offset] << 8) & 0x0000ff00) | (data[offset+1] & 0x000000ff);
+			int minor = ((data[offset+2] << 8) & 0x0000ff00) | (data[offset+3] & 0x000000ff);
+			return (major << 16) | minor | data[offset+4];
+		}
+		return 0;
+	}
+
+	/**
+	 * Same frame without the flags and after a TX power structure
+	 */
+	private static byte[] movedFrame(byte[] record){
+		byte[] r = new byte[62];
+		r[0] = 0x02;
+		r[1] = (byte)AdStructures.TYPE_TX_POWER_LEVEL;
+		r[2] = 0x04;
+		System.arraycopy(record, 3, r, 3, 27);
+		return r;
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.easibeacon.protocol;
+
+import java.util.Arrays;
+
+/**
+ * Allocations and time per packet of the reusable {@link IBeaconAdvertisement} view, against the former
+ * <code>parseAdvertisementData</code>, which logged the record, copied the UUID and created an {@link IBeacon}
+ * for every packet.
+ * 
+ * @author inakivazquez
+ *
+ */
+public final class AdvertisementBench {
+
+	private static final int PACKETS = 1000000;
+
+	public static void main(String[] args){
+		final byte[][] records = new byte[64][];
+		for(int i=0;i<records.length;i++)
+			records[i] = Bench.iBeaconRecord(i, i, i, -59);
+		final IBeaconAdvertisement advertisement = new IBeaconAdvertisement();
+		advertisement.addDecoder(new IBeaconDecoder());
+
+		new Bench(){
+			@Override
+			long run(int i) {
+				IBeacon ibeacon = legacyParse(records[i & 63]);
+				return ibeacon == null ? 0 : ibeacon.getMinor();
+			}
+		}.measure("legacy parseAdvertisementData", PACKETS);
+
+		new Bench(){
+			@Override
+			long run(int i) {
+				return advertisement.wrap(records[i & 63]) ? advertisement.getMajorMinor() : 0;
+			}
+		}.measure("IBeaconAdvertisement.wrap", PACKETS);
+	}
+
+	/**
+	 * The parser before the reusable view, without the call to the Android log but with its message
+	 */
+	static IBeacon legacyParse(byte[] data){
+		Bench.sink += Arrays.toString(data).length();
+		if(data[0]==0x02 && data[1]==0x01 && data[4]==(byte)0xFF && data[7]==0x02){
+			byte[] uuid = Arrays.copyOfRange(data, IBeaconEngine.ADV_PREFIX_LENGTH, IBeaconEngine.ADV_PREFIX_LENGTH + IBeaconEngine.ADV_UUID_LENGTH);
+			int offset = IBeaconEngine.ADV_PREFIX_LENGTH + IBeaconEngine.ADV_UUID_LENGTH;
+			IBeacon ibeacon = new IBeacon();
+			ibeacon.setUuid(uuid);
+			ibeacon.setMajor(((data[offset] << 8) & 0x0000ff00) | (data[offset+1] & 0x000000ff));
+			ibeacon.setMinor(((data[offset+2] << 8) & 0x0000ff00) | (data[offset+3] & 0x000000ff));
+			ibeacon.setPowerValue(data[offset+4]);
+			return ibeacon;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.easibeacon.protocol;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Minimal harness for the benchmarks of this folder, run with a plain <code>main</code>:
+ * <pre>
+ * javac -sourcepath src -d out bench/com/easibeacon/protocol/*.java
+ * java -cp out com.easibeacon.protocol.AdvertisementBench
+ * </pre>
+ * Every operation is warmed up, then timed, and the bytes allocated by the thread are read where the JVM reports them.
+ * 
+ * @author inakivazquez
+ *
+ */
+abstract class Bench {
+
+	private static final int WARMUP_ROUNDS = 5;
+
+	private static final int ROUNDS = 5;
+
+	/**
+	 * Consumes the results so that the work is not optimized away
+	 */
+	static volatile long sink;
+
+	/**
+	 * Runs the operation under measure once
+	 * 
+	 * @param i the number of the operation
+	 * @return any value depending on the work done
+	 */
+	abstract long run(int i);
+
+	/**
+	 * Measures the operation and prints its time and allocation per operation
+	 * 
+	 * @param name the name printed
+	 * @param operations the operations per round
+	 */
+	void measure(String name, int operations){
+		for(int r=0;r<WARMUP_ROUNDS;r++)
+			round(operations);
+		long bestNanos = Long.MAX_VALUE;
+		long bytes = 0;
+		for(int r=0;r<ROUNDS;r++){
+			long allocated = allocatedBytes();
+			long start = System.nanoTime();
+			round(operations);
+			long nanos = System.nanoTime() - start;
+			bytes = allocatedBytes() - allocated;
+			bestNanos = Math.min(bestNanos, nanos);
+		}
+		String allocation = allocatedBytes() < 0 ? "n/a" : String.format("%.1f", (double)bytes / operations);
+		System.out.println(String.format("%-40s %10.1f ns/op %10s B/op", name, (double)bestNanos / operations, allocation));
+	}
+
+	private void round(int operations){
+		long s = 0;
+		for(int i=0;i<operations;i++)
+			s += run(i);
+		sink += s;
+	}
+
+	/**
+	 * @return the bytes allocated so far by the current thread, -1 if the JVM does not report them
+	 */
+	private static long allocatedBytes(){
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if(bean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return -1;
+	}
+
+	/**
+	 * Builds an iBeacon scan record: flags, the Apple frame and zero padding
+	 */
+	static byte[] iBeaconRecord(int uuidLast, int major, int minor, int power){
+		byte[] r = new byte[62];
+		byte[] prefix = {0x02, 0x01, 0x06, 0x1A, (byte)0xFF, 0x4C, 0x00, 0x02, 0x15};
+		System.arraycopy(prefix, 0, r, 0, prefix.length);
+		for(int i=0;i<16;i++)
+			r[9 + i] = (byte)(0xE2 + i);
+		r[24] = (byte)uuidLast;
+		r[25] = (byte)(major >> 8);
+		r[26] = (byte)major;
+		r[27] = (byte)(minor >> 8);
+		r[28] = (byte)minor;
+		r[29] = (byte)power;
+		return r;
+	}
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.easibeacon.protocol;
+
+/**
+ * Cost per sample of the {@link RssiFilter}s, fed a noisy RSSI trace
+ * 
+ * @author inakivazquez
+ *
+ */
+public final class RssiFilterBench {
+
+	private static final int SAMPLES = 1000000;
+
+	public static void main(String[] args){
+		final int[] trace = new int[4096];
+		java.util.Random random = new java.util.Random(1);
+		for(int i=0;i<trace.length;i++)
+			trace[i] = (int)Math.round(-70 + 6 * random.nextGaussian());
+		bench("EwmaRssiFilter", new EwmaRssiFilter(IBeaconEngine.DEFAULT_EWMA_ALPHA), trace);
+		bench("KalmanRssiFilter", new KalmanRssiFilter(0.05, 4), trace);
+		bench("MedianRssiFilter(5)", new MedianRssiFilter(5), trace);
+		bench("MedianRssiFilter(15)", new MedianRssiFilter(15), trace);
+	}
+
+	private static void bench(String name, final RssiFilter filter, final int[] trace){
+		new Bench(){
+			@Override
+			long run(int i) {
+				return (long)filter.filter(trace[i & (trace.length - 1)], i * 100000000L);
+			}
+		}.measure(name, SAMPLES);
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.easibeacon.protocol;
+
+import java.util.Random;
+
+/**
+ * Cost of the {@link TrilaterationEstimator} from 3 to 50 anchors in view: feeding a distance sample, and solving
+ * with and without the Gauss-Newton refinement. The only allocation expected is the {@link Position} returned.
+ * 
+ * @author inakivazquez
+ *
+ */
+public final class TrilaterationBench {
+
+	private static final int OPERATIONS = 1000000;
+
+	private static final int[] ANCHORS = {3, 5, 10, 20, 50};
+
+	public static void main(String[] args){
+		for(int i=0;i<ANCHORS.length;i++)
+			bench(ANCHORS[i]);
+	}
+
+	private static void bench(final int anchors){
+		Random random = new Random(anchors);
+		FloorMap map = new FloorMap();
+		for(int i=0;i<anchors;i++)
+			map.add(1, 1, 1, i, random.nextDouble() * 50, random.nextDouble() * 50);
+		// Noisy distances in centimetres from a fixed point, one trace per anchor
+		final int[] trace = new int[4096];
+		for(int i=0;i<trace.length;i++){
+			int anchor = i % anchors;
+			double d = Math.hypot(20 - map.getX(anchor), 30 - map.getY(anchor));
+			trace[i] = (int)Math.round(100 * d * (1 + 0.1 * random.nextGaussian()));
+		}
+		final TrilaterationEstimator estimator = new TrilaterationEstimator(map);
+		for(int i=0;i<anchors;i++)
+			estimator.update(i, trace[i], -70, -59, 0);
+
+		new Bench(){
+			@Override
+			long run(int i) {
+				estimator.update(i % anchors, trace[i & (trace.length - 1)], -70, -59, i);
+				return i;
+			}
+		}.measure("update, " + anchors + " anchors", OPERATIONS);
+
+		estimator.setIterations(0);
+		new Bench(){
+			@Override
+			long run(int i) {
+				Position p = estimator.estimate(i);
+				return p == null ? 0 : (long)p.getX();
+			}
+		}.measure("estimate linear, " + anchors + " anchors", OPERATIONS);
+
+		estimator.setIterations(TrilaterationEstimator.DEFAULT_ITERATIONS);
+		new Bench(){
+			@Override
+			long run(int i) {
+				Position p = estimator.estimate(i);
+				return p == null ? 0 : (long)p.getX();
+			}
+		}.measure("estimate refined, " + anchors + " anchors", OPERATIONS);
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.easibeacon.protocol;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable walker over the AD structures of a BLE scan record.
+ * Every structure is a length byte, a type byte and its payload; the walk records where each one is without
+ * copying or allocating, and stops at the first zero length or at a structure running past the record.
+ * 
+ * @author inakivazquez
+ *
+ */
+public final class AdStructures {
+
+	public static final int TYPE_FLAGS = 0x01;
+
+	public static final int TYPE_INCOMPLETE_16BIT_UUIDS = 0x02;
+
+	public static final int TYPE_COMPLETE_16BIT_UUIDS = 0x03;
+
+	public static final int TYPE_SHORTENED_LOCAL_NAME = 0x08;
+
+	public static final int TYPE_COMPLETE_LOCAL_NAME = 0x09;
+
+	public static final int TYPE_TX_POWER_LEVEL = 0x0A;
+
+	public static final int TYPE_SERVICE_DATA_16BIT_UUID = 0x16;
+
+	public static final int TYPE_MANUFACTURER_SPECIFIC_DATA = 0xFF;
+
+	/**
+	 * Maximum number of structures recorded, enough for the 62 bytes of advertisement and scan response
+	 */
+	public static final int MAX_STRUCTURES = 31;
+
+	private final int[] _types = new int[MAX_STRUCTURES];
+
+	private final int[] _offsets = new int[MAX_STRUCTURES];
+
+	private final int[] _lengths = new int[MAX_STRUCTURES];
+
+	private int _count;
+
+	private byte[] _data;
+
+	/**
+	 * Walks the structures of a scan record
+	 * 
+	 * @param data the scan record, may be <code>null</code>
+	 * @return the number of structures found
+	 */
+	public int parse(byte[] data){
+		_data = data;
+		_count = 0;
+		if(data == null)
+			return 0;
+		int position = 0;
+		while(position < data.length && _count < MAX_STRUCTURES){
+			int length = data[position] & 0xff;
+			// A zero length marks the padding at the end of the record
+			if(length == 0 || position + 1 + length > data.length)
+				break;
+			_types[_count] = data[position + 1] & 0xff;
+			_offsets[_count] = position + 2;
+			_lengths[_count] = length - 1;
+			_count++;
+			position += 1 + length;
+		}
+		return _count;
+	}
+
+	/**
+	 * @return the number of structures found by the last walk
+	 */
+	public int size(){
+		return _count;
+	}
+
+	/**
+	 * @return the scan record of the last walk
+	 */
+	public byte[] getData(){
+		return _data;
+	}
+
+	/**
+	 * @return the AD type of a structure
+	 */
+	public int getType(int index){
+		checkIndex(index);
+		return _types[index];
+	}
+
+	/**
+	 * @return the offset in the scan record of the payload of a structure, after its type
+	 */
+	public int getOffset(int index){
+		checkIndex(index);
+		return _offsets[index];
+	}
+
+	/**
+	 * @return the length of the payload of a structure, without its type
+	 */
+	public int getLength(int index){
+		checkIndex(index);
+		return _lengths[index];
+	}
+
+	/**
+	 * Finds the next structure of a type
+	 * 
+	 * @param type the AD type
+	 * @param from the index to start from
+	 * @return the index of the structure, -1 if not found
+	 */
+	public int indexOf(int type, int from){
+		for(int i=Math.max(from, 0);i<_count;i++){
+			if(_types[i] == type)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Gives the payload of a structure without copying it
+	 * 
+	 * @return a read-only buffer over the payload in the scan record
+	 */
+	public ByteBuffer slice(int index){
+		checkIndex(index);
+		return ByteBuffer.wrap(_data, _offsets[index], _lengths[index]).slice().asReadOnlyBuffer();
+	}
+
+	private void checkIndex(int index){
+		if(index < 0 || index >= _count)
+			throw new IndexOutOfBoundsException("AD structure " + index + " of " + _count);
+	}
+}
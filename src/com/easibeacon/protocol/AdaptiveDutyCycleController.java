@@ -0,0 +1,177 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.easibeacon.protocol;
+
+/**
+ * Adapts the rest between scan windows to the observed churn.
+ * While no iBeacons come or go and their RSSI is steady the rest grows, and as soon as something changes it shrinks,
+ * always within the configured bounds. Not thread safe, the engine calls it while holding its lock.
+ * 
+ * @author inakivazquez
+ *
+ */
+public class AdaptiveDutyCycleController {
+
+	/**
+	 * Default factor applied to the rest after a stable window
+	 */
+	public static final double DEFAULT_GROWTH = 1.5;
+
+	/**
+	 * Default RSSI variance below which a window is considered stable, in dB squared
+	 */
+	public static final double DEFAULT_VARIANCE_THRESHOLD = 16;
+
+	private final Clock _clock;
+
+	private final long _minIdleMillis;
+
+	private final long _maxIdleMillis;
+
+	private double _growth = DEFAULT_GROWTH;
+
+	private double _varianceThreshold = DEFAULT_VARIANCE_THRESHOLD;
+
+	private DutyCycleMetrics _metrics;
+
+	/**
+	 * The rest currently decided, -1 until the first window ends
+	 */
+	private long _idleMillis = -1;
+
+	// Statistics of the current window
+	private int _newBeacons;
+
+	private int _lostBeacons;
+
+	private int _samples;
+
+	private double _sum;
+
+	private double _sumSquares;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param clock the clock to timestamp the decisions
+	 * @param minIdleMillis the shortest rest between windows
+	 * @param maxIdleMillis the longest rest between windows
+	 */
+	public AdaptiveDutyCycleController(Clock clock, long minIdleMillis, long maxIdleMillis){
+		if(minIdleMillis < 0 || maxIdleMillis < minIdleMillis)
+			throw new IllegalArgumentException("Invalid bounds: " + minIdleMillis + "-" + maxIdleMillis);
+		_clock = clock;
+		_minIdleMillis = minIdleMillis;
+		_maxIdleMillis = maxIdleMillis;
+	}
+
+	/**
+	 * @param growth factor (&gt; 1) applied to the rest after a stable window, and dividing it after a changing one
+	 */
+	public void setGrowth(double growth) {
+		if(growth <= 1)
+			throw new IllegalArgumentException("Invalid growth: " + growth);
+		_growth = growth;
+	}
+
+	/**
+	 * @param threshold RSSI variance below which a window is considered stable, in dB squared
+	 */
+	public void setVarianceThreshold(double threshold) {
+		_varianceThreshold = threshold;
+	}
+
+	public void setMetrics(DutyCycleMetrics metrics) {
+		_metrics = metrics;
+	}
+
+	/**
+	 * Called when a new iBeacon is found
+	 */
+	public void beaconFound(){
+		_newBeacons++;
+	}
+
+	/**
+	 * Called when an iBeacon expires
+	 */
+	public void beaconLost(){
+		_lostBeacons++;
+	}
+
+	/**
+	 * Called for every RSSI sample of a known iBeacon
+	 * 
+	 * @param innovation difference between the sample and the filtered RSSI before it
+	 */
+	public void rssiSample(double innovation){
+		_samples++;
+		_sum += innovation;
+		_sumSquares += innovation * innovation;
+	}
+
+	/**
+	 * Decides the rest after a scan window and starts the statistics of the next one
+	 * 
+	 * @param baseIdleMillis the rest of the configured duty cycle, used until the first decision
+	 * @return the rest before the next window in milliseconds
+	 */
+	public long endWindow(long baseIdleMillis){
+		long previous = _idleMillis < 0 ? clamp(baseIdleMillis) : _idleMillis;
+		double variance = 0;
+		if(_samples > 1){
+			double mean = _sum / _samples;
+			variance = Math.max(_sumSquares / _samples - mean * mean, 0);
+		}
+		long next;
+		if(_newBeacons == 0 && _lostBeacons == 0 && variance <= _varianceThreshold)
+			next = clamp((long)Math.ceil(Math.max(previous, 1) * _growth));
+		else
+			next = clamp((long)(previous / _growth));
+		if(_metrics != null)
+			_metrics.onDecision(_clock.nanoTime(), _newBeacons, _lostBeacons, variance, previous, next);
+		_idleMillis = next;
+		_newBeacons = 0;
+		_lostBeacons = 0;
+		_samples = 0;
+		_sum = 0;
+		_sumSquares = 0;
+		return next;
+	}
+
+	/**
+	 * Forgets the decisions taken, for instance when the duty cycle profile changes
+	 */
+	public void reset(){
+		_idleMillis = -1;
+		_newBeacons = 0;
+		_lostBeacons = 0;
+		_samples = 0;
+		_sum = 0;
+		_sumSquares = 0;
+	}
+
+	private long clamp(long idleMillis){
+		return Math.min(Math.max(idleMillis, _minIdleMillis), _maxIdleMillis);
+	}
+}
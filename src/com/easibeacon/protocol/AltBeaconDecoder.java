@@ -0,0 +1,55 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.easibeacon.protocol;
+
+/**
+ * Decodes AltBeacon frames, in the manufacturer specific data.
+ * The 20 bytes of the beacon identifier are mapped to the UUID, major and minor of an iBeacon.
+ * 
+ * @author inakivazquez
+ *
+ */
+public final class AltBeaconDecoder implements FrameDecoder {
+
+	/**
+	 * Length of the payload: company, beacon code, identifier, reference RSSI and reserved byte
+	 */
+	private static final int FRAME_LENGTH = 4 + 20 + 2;
+
+	@Override
+	public int getAdType() {
+		return AdStructures.TYPE_MANUFACTURER_SPECIFIC_DATA;
+	}
+
+	@Override
+	public boolean decode(byte[] data, int offset, int length, IBeaconAdvertisement advertisement) {
+		if(length < FRAME_LENGTH || data[offset+2] != (byte)0xBE || data[offset+3] != (byte)0xAC)
+			return false;
+		int id = offset + 4;
+		int position = id + 16;
+		int major = ((data[position] << 8) & 0x0000ff00) | (data[position+1] & 0x000000ff);
+		int minor = ((data[position+2] << 8) & 0x0000ff00) | (data[position+3] & 0x000000ff);
+		advertisement.setFrame(IBeacon.FRAME_ALTBEACON, Utils.readLong(data, id), Utils.readLong(data, id + 8),
+				major, minor, data[position+4]);
+		return true;
+	}
+}
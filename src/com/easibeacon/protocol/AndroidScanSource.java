@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.easibeacon.protocol;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * {@link ScanSource} reporting the advertisements received by the Android {@link BluetoothAdapter}
+ * 
+ * @author inakivazquez
+ *
+ */
+public class AndroidScanSource implements ScanSource {
+
+	/**
+	 * Reference to the BluetoothAdapter
+	 */	
+	private volatile BluetoothAdapter _bluetoothAdapter;
+
+	/**
+	 * Receiver of the advertisements while scanning
+	 */	
+	private volatile ScanSource.Callback _callback;
+
+	public BluetoothAdapter getBluetoothAdapter() {
+		return _bluetoothAdapter;
+	}
+
+	public void setBluetoothAdapter(BluetoothAdapter adapter) {
+		_bluetoothAdapter = adapter;
+	}
+
+	/**
+	 * Callback for processing BLE events, forwarded to the engine
+	 */
+	private BluetoothAdapter.LeScanCallback mLeScanCallback = new BluetoothAdapter.LeScanCallback() {
+	    @Override
+	    public void onLeScan(final BluetoothDevice device, int rssi,
+	            byte[] scanRecord) {
+	    	ScanSource.Callback callback = _callback;
+	    	if(callback != null)
+	    		// The name is a binder call, only resolved through getName for new beacons
+	    		callback.onAdvertisement(device.getAddress(), null, rssi, scanRecord, System.nanoTime());
+	    }
+	};
+
+	@Override
+	public boolean start(ScanSource.Callback callback) {
+		_callback = callback;
+		return _bluetoothAdapter.startLeScan(mLeScanCallback);
+	}
+
+	@Override
+	public void stop() {
+		_bluetoothAdapter.stopLeScan(mLeScanCallback);
+		_callback = null;
+	}
+
+	@Override
+	public String getName(String macAddress) {
+		BluetoothAdapter adapter = _bluetoothAdapter;
+		if(adapter == null || macAddress == null)
+			return null;
+		try{
+			BluetoothDevice device = adapter.getRemoteDevice(macAddress);
+			return device == null ? null : device.getName();
+		}catch(IllegalArgumentException e){
+			return null;
+		}
+	}
+}
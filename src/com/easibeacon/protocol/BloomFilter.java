@@ -0,0 +1,237 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.easibeacon.protocol;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Bloom filter of iBeacon identities (UUID, major and minor).
+ * Answers "definitely not present" or "maybe present" with a few bit probes, and can be memory-mapped from a
+ * binary file so that large filters do not live in the heap.
+ * 
+ * @author inakivazquez
+ *
+ */
+public final class BloomFilter {
+
+	/**
+	 * Identifies the binary format, "EBBF"
+	 */
+	private static final int MAGIC = 0x45424246;
+
+	private static final int VERSION = 2;
+
+	/**
+	 * Version 1 files have no source fields and are always reported as stale
+	 */
+	private static final int VERSION_1 = 1;
+
+	private static final int HEADER_LENGTH_1 = 20;
+
+	/**
+	 * Size of the file header: magic, version, number of hashes, number of words, and the number of entries and
+	 * checksum of the source the filter was built from
+	 */
+	private static final int HEADER_LENGTH = 32;
+
+	private final LongBuffer _bits;
+
+	private final long _numBits;
+
+	private final int _numHashes;
+
+	/**
+	 * Number of entries and checksum of the source of the filter, -1 and 0 if unknown
+	 */
+	private int _sourceCount = -1;
+
+	private long _sourceChecksum = 0;
+
+	private BloomFilter(LongBuffer bits, int numHashes){
+		_bits = bits;
+		_numBits = (long)bits.capacity() * 64;
+		_numHashes = numHashes;
+	}
+
+	/**
+	 * Creates an empty filter in the heap
+	 * 
+	 * @param expectedEntries the number of identities to be added
+	 * @param falsePositiveRate the accepted rate of false positives, such as 0.01
+	 * @return the filter
+	 */
+	public static BloomFilter create(int expectedEntries, double falsePositiveRate){
+		if(expectedEntries < 1 || falsePositiveRate <= 0 || falsePositiveRate >= 1)
+			throw new IllegalArgumentException("Invalid filter size: " + expectedEntries + ", " + falsePositiveRate);
+		double ln2 = Math.log(2);
+		long bits = (long)Math.ceil(-expectedEntries * Math.log(falsePositiveRate) / (ln2 * ln2));
+		int words = (int)Math.min((bits + 63) / 64, Integer.MAX_VALUE);
+		int hashes = Math.max(1, (int)Math.round((double)words * 64 / expectedEntries * ln2));
+		return new BloomFilter(LongBuffer.allocate(words), hashes);
+	}
+
+	/**
+	 * Memory-maps a filter saved with {@link #writeTo(File)}
+	 * 
+	 * @param file the binary file
+	 * @return the filter, backed by the file
+	 * @throws IOException if the file cannot be read or is not a filter
+	 */
+	public static BloomFilter load(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if(buffer.capacity() < HEADER_LENGTH_1 || buffer.getInt(0) != MAGIC)
+				throw new IOException("Not a Bloom filter: " + file);
+			int version = buffer.getInt(4);
+			int header = version == VERSION ? HEADER_LENGTH : HEADER_LENGTH_1;
+			if((version != VERSION && version != VERSION_1) || buffer.capacity() < header)
+				throw new IOException("Not a Bloom filter: " + file);
+			int hashes = buffer.getInt(8);
+			long words = buffer.getLong(12);
+			if(hashes < 1 || words < 1 || header + words * 8 != buffer.capacity())
+				throw new IOException("Corrupted Bloom filter: " + file);
+			buffer.position(header);
+			BloomFilter filter = new BloomFilter(buffer.slice().asLongBuffer(), hashes);
+			if(version == VERSION){
+				filter._sourceCount = buffer.getInt(20);
+				filter._sourceChecksum = buffer.getLong(24);
+			}
+			return filter;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Saves the filter in its binary form
+	 * 
+	 * @param file the destination file
+	 * @throws IOException if the file cannot be written
+	 */
+	public void writeTo(File file) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			FileChannel channel = out.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+			header.putInt(MAGIC).putInt(VERSION).putInt(_numHashes).putLong(_bits.capacity())
+					.putInt(_sourceCount).putLong(_sourceChecksum);
+			header.flip();
+			while(header.hasRemaining())
+				channel.write(header);
+			ByteBuffer chunk = ByteBuffer.allocate(8192);
+			for(int i=0;i<_bits.capacity();i++){
+				if(!chunk.hasRemaining()){
+					chunk.flip();
+					while(chunk.hasRemaining())
+						channel.write(chunk);
+					chunk.clear();
+				}
+				chunk.putLong(_bits.get(i));
+			}
+			chunk.flip();
+			while(chunk.hasRemaining())
+				channel.write(chunk);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Adds an identity, only for filters created in the heap
+	 */
+	public void put(long uuidMsb, long uuidLsb, int majorMinor){
+		long h1 = mix(uuidMsb ^ Long.rotateLeft(uuidLsb, 29) ^ ((long)majorMinor << 7));
+		long h2 = mix(h1 ^ uuidLsb ^ majorMinor) | 1;
+		for(int i=0;i<_numHashes;i++){
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % _numBits;
+			int word = (int)(bit >>> 6);
+			_bits.put(word, _bits.get(word) | (1L << bit));
+		}
+	}
+
+	/**
+	 * Checks an identity
+	 * 
+	 * @return <code>false</code> if the identity was definitely not added, <code>true</code> if it may have been
+	 */
+	public boolean mightContain(long uuidMsb, long uuidLsb, int majorMinor){
+		long h1 = mix(uuidMsb ^ Long.rotateLeft(uuidLsb, 29) ^ ((long)majorMinor << 7));
+		long h2 = mix(h1 ^ uuidLsb ^ majorMinor) | 1;
+		for(int i=0;i<_numHashes;i++){
+			long bit = ((h1 + i * h2) & Long.MAX_VALUE) % _numBits;
+			if((_bits.get((int)(bit >>> 6)) & (1L << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Records the source the filter is built from, saved with it so that a stale filter can be told
+	 * 
+	 * @param count the number of entries of the source
+	 * @param checksum the checksum of the source
+	 */
+	public void setSource(int count, long checksum){
+		_sourceCount = count;
+		_sourceChecksum = checksum;
+	}
+
+	/**
+	 * @return the number of entries of the source, -1 if unknown
+	 */
+	public int getSourceCount(){
+		return _sourceCount;
+	}
+
+	public long getSourceChecksum(){
+		return _sourceChecksum;
+	}
+
+	public int getNumHashes(){
+		return _numHashes;
+	}
+
+	public long getNumBits(){
+		return _numBits;
+	}
+
+	/**
+	 * 64-bit finalizer of MurmurHash3
+	 */
+	private static long mix(long h){
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.easibeacon.protocol;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link ScanSource.Callback} that only copies the advertisements into a {@link ScanRingBuffer}, so the scan
+ * thread returns immediately. A dedicated consumer thread drains the buffer in batches into the target callback,
+ * in a single call per batch if the target is a {@link ScanSource.BatchCallback}.
+ * 
+ * @author inakivazquez
+ *
+ */
+public class BufferedScanCallback implements ScanSource.Callback {
+
+	/**
+	 * Maximum number of advertisements delivered per drain
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 256;
+
+	private final ScanRingBuffer _buffer;
+
+	private final ScanSource.Callback _target;
+
+	/**
+	 * The same target if it takes batches, <code>null</code> otherwise
+	 */
+	private final ScanSource.BatchCallback _batchTarget;
+
+	private final int _batchSize;
+
+	private volatile Thread _consumer;
+
+	/**
+	 * <code>true</code> while the consumer is parked waiting for advertisements
+	 */
+	private volatile boolean _waiting;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param buffer the buffer between the scan thread and the consumer
+	 * @param target the callback receiving the advertisements on the consumer thread
+	 * @param batchSize maximum number of advertisements delivered per drain
+	 */
+	public BufferedScanCallback(ScanRingBuffer buffer, ScanSource.Callback target, int batchSize){
+		_buffer = buffer;
+		_target = target;
+		_batchTarget = target instanceof ScanSource.BatchCallback ? (ScanSource.BatchCallback)target : null;
+		_batchSize = batchSize;
+		_buffer.setClosed(true);
+	}
+
+	public ScanRingBuffer getBuffer(){
+		return _buffer;
+	}
+
+	/**
+	 * Starts the consumer thread if not running
+	 */
+	public synchronized void start(){
+		if(_consumer != null)
+			return;
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				consume();
+			}
+		}, Utils.LOG_TAG + "-scan");
+		t.setDaemon(true);
+		_consumer = t;
+		_buffer.setClosed(false);
+		t.start();
+	}
+
+	/**
+	 * Stops the consumer thread once the buffered advertisements have been delivered
+	 */
+	public synchronized void stop(){
+		Thread t = _consumer;
+		if(t == null)
+			return;
+		_consumer = null;
+		_buffer.setClosed(true);
+		LockSupport.unpark(t);
+		if(t != Thread.currentThread()){
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	@Override
+	public void onAdvertisement(String macAddress, String name, int rssi, byte[] scanRecord, long timestampNanos) {
+		if(_buffer.offer(macAddress, name, rssi, scanRecord, timestampNanos) && _waiting){
+			Thread t = _consumer;
+			if(t != null)
+				LockSupport.unpark(t);
+		}
+	}
+
+	private void consume(){
+		Thread self = Thread.currentThread();
+		while(true){
+			if(drain() > 0)
+				continue;
+			if(_consumer != self){
+				// Stopped: deliver what is left and finish
+				while(drain() > 0);
+				return;
+			}
+			_waiting = true;
+			if(_buffer.isEmpty() && _consumer == self)
+				LockSupport.parkNanos(this, 10000000L);
+			_waiting = false;
+		}
+	}
+
+	private int drain(){
+		if(_batchTarget != null)
+			return _buffer.drainBatch(_batchTarget, _batchSize);
+		return _buffer.drain(_target, _batchSize);
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.easibeacon.protocol;
+
+/**
+ * Precomputed distances for every RSSI value, built lazily for each TX power actually seen.
+ * Turns the distance estimation of every packet into a single array load.
+ * 
+ * @author inakivazquez
+ *
+ */
+final class DistanceTable {
+
+	/**
+	 * Lowest RSSI value in the table, higher values are clamped
+	 */
+	private static final int MIN_RSSI = -128;
+
+	/**
+	 * One table per TX power (-128..127), indexed by RSSI - MIN_RSSI, in centimetres
+	 */
+	private final int[][] _tables = new int[256][];
+
+	/**
+	 * Estimates the distance to an iBeacon
+	 * 
+	 * @param txPower RSSI of the iBeacon at 1 meter
+	 * @param rssi measured RSSI by the user device
+	 * @return the distance in centimetres, or -1 if it cannot be determined
+	 */
+	public int getDistanceCm(int txPower, int rssi){
+		if(rssi >= 0 || txPower == 0 || txPower < -128 || txPower > 127)
+			return -1;
+		int[] table = _tables[txPower + 128];
+		if(table == null){
+			table = build(txPower);
+			_tables[txPower + 128] = table;
+		}
+		return table[Math.max(rssi, MIN_RSSI) - MIN_RSSI];
+	}
+
+	private static int[] build(int txPower){
+		int[] table = new int[-MIN_RSSI];
+		for(int i=0;i<table.length;i++){
+			double distance = calculateDistance(txPower, i + MIN_RSSI);
+			table[i] = distance < 0 ? -1 : (int)Math.min(Math.round(distance * 100), Integer.MAX_VALUE);
+		}
+		return table;
+	}
+
+	/**
+	 * Roughly estimates the distance to the iBeacon
+	 * Calculation obtained from http://stackoverflow.com/questions/20416218/understanding-ibeacon-distancing
+	 *  
+	 * @param txPower RSSI of the iBeacon at 1 meter
+	 * @param rssi measured RSSI by the user device
+	 * @return the distance in meters
+	 */
+	static double calculateDistance(int txPower, double rssi) {
+		if (rssi == 0) {
+			return -1.0; // if we cannot determine accuracy, return -1.
+		}
+
+		double ratio = rssi*1.0/txPower;
+		if (ratio < 1.0) {
+			return Math.pow(ratio,10);
+		}
+		else {
+			double accuracy =  (0.89976)*Math.pow(ratio,7.7095) + 0.111;    
+			return accuracy;
+		}
+	} 
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.easibeacon.protocol;
+
+/**
+ * Receives the decisions of an {@link AdaptiveDutyCycleController}, to tune battery use against detection latency
+ * 
+ * @author inakivazquez
+ *
+ */
+public interface DutyCycleMetrics {
+
+	/**
+	 * Called at the end of every scan window
+	 * 
+	 * @param timeNanos when the decision was taken, from the engine clock
+	 * @param newBeacons iBeacons found during the window
+	 * @param lostBeacons iBeacons expired during the window
+	 * @param rssiVariance variance of the RSSI samples around their filtered values, in dB squared
+	 * @param previousIdleMillis the rest before the window
+	 * @param nextIdleMillis the rest decided for after the window
+	 */
+	public void onDecision(long timeNanos, int newBeacons, int lostBeacons, double rssiVariance, long previousIdleMillis, long nextIdleMillis);
+}
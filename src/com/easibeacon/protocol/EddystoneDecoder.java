@@ -0,0 +1,126 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.easibeacon.protocol;
+
+/**
+ * Decodes Eddystone UID, URL and TLM frames, in the service data of the Eddystone service.
+ * The namespace and instance of a UID frame are mapped to the UUID of an iBeacon, with major and minor 0.
+ * URL frames have no identifier, they are told apart by their MAC address. TLM frames only carry the telemetry
+ * of the beacon, which is attached to the frames already seen from the same MAC address.
+ * 
+ * @author inakivazquez
+ *
+ */
+public final class EddystoneDecoder implements FrameDecoder {
+
+	private static final int FRAME_UID = 0x00;
+
+	private static final int FRAME_URL = 0x10;
+
+	private static final int FRAME_TLM = 0x20;
+
+	/**
+	 * Length of the payload of each frame, including the service UUID, the frame type and the power
+	 */
+	private static final int UID_LENGTH = 20;
+
+	private static final int URL_MIN_LENGTH = 5;
+
+	private static final int TLM_LENGTH = 16;
+
+	/**
+	 * Signal lost over the first meter, as Eddystone frames give the power at 0 meters
+	 */
+	private static final int LOSS_AT_ONE_METER = 41;
+
+	private static final String[] URL_SCHEMES = {"http://www.", "https://www.", "http://", "https://"};
+
+	private static final String[] URL_EXPANSIONS = {".com/", ".org/", ".edu/", ".net/", ".info/", ".biz/", ".gov/",
+		".com", ".org", ".edu", ".net", ".info", ".biz", ".gov"};
+
+	@Override
+	public int getAdType() {
+		return AdStructures.TYPE_SERVICE_DATA_16BIT_UUID;
+	}
+
+	@Override
+	public boolean decode(byte[] data, int offset, int length, IBeaconAdvertisement advertisement) {
+		// Service UUID 0xFEAA, little endian
+		if(length < 3 || data[offset] != (byte)0xAA || data[offset+1] != (byte)0xFE)
+			return false;
+		switch(data[offset+2]){
+		case FRAME_UID:
+			if(length < UID_LENGTH)
+				return false;
+			advertisement.setFrame(IBeacon.FRAME_EDDYSTONE_UID, Utils.readLong(data, offset + 4), Utils.readLong(data, offset + 12),
+					0, 0, data[offset+3] - LOSS_AT_ONE_METER);
+			return true;
+		case FRAME_URL:
+			if(length < URL_MIN_LENGTH || (data[offset+4] & 0xff) >= URL_SCHEMES.length)
+				return false;
+			for(int i=offset+5;i<offset+length;i++){
+				int c = data[i] & 0xff;
+				if(c >= URL_EXPANSIONS.length && (c <= 0x20 || c >= 0x7f))
+					return false;
+			}
+			advertisement.setFrame(IBeacon.FRAME_EDDYSTONE_URL, 0, 0, 0, 0, data[offset+3] - LOSS_AT_ONE_METER);
+			// Kept encoded, the string is only built when the URL is new or changes
+			advertisement.setUrl(data, offset + 4, length - 4);
+			return true;
+		case FRAME_TLM:
+			// Only the unencrypted version 0 is understood
+			if(length < TLM_LENGTH || data[offset+3] != 0)
+				return false;
+			int battery = ((data[offset+4] << 8) & 0x0000ff00) | (data[offset+5] & 0x000000ff);
+			// Signed 8.8 fixed point, 0x8000 if not supported
+			short temperature = (short)(((data[offset+6] & 0xff) << 8) | (data[offset+7] & 0xff));
+			long count = readUnsignedInt(data, offset + 8);
+			long uptime = readUnsignedInt(data, offset + 12);
+			advertisement.setTelemetry(battery, temperature == Short.MIN_VALUE ? Float.NaN : temperature / 256f, count, uptime);
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Expands an encoded Eddystone URL: the scheme byte followed by the characters and expansion codes
+	 * 
+	 * @return the URL
+	 */
+	static String decodeUrl(byte[] data, int offset, int length){
+		StringBuilder url = new StringBuilder(URL_SCHEMES[data[offset]]);
+		for(int i=offset+1;i<offset+length;i++){
+			int c = data[i] & 0xff;
+			if(c < URL_EXPANSIONS.length)
+				url.append(URL_EXPANSIONS[c]);
+			else
+				url.append((char)c);
+		}
+		return url.toString();
+	}
+
+	private static long readUnsignedInt(byte[] data, int offset){
+		return ((long)(data[offset] & 0xff) << 24) | ((data[offset+1] & 0xff) << 16)
+				| ((data[offset+2] & 0xff) << 8) | (data[offset+3] & 0xff);
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.easibeacon.protocol;
+
+/**
+ * Exponentially weighted moving average of the RSSI
+ * 
+ * @author inakivazquez
+ *
+ */
+public class EwmaRssiFilter implements RssiFilter {
+
+	/**
+	 * Weight of a new sample, between 0 and 1
+	 */
+	private final double _alpha;
+
+	private double _value;
+
+	private boolean _initialized = false;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param alpha weight of a new sample (0-1], higher values follow changes faster
+	 */
+	public EwmaRssiFilter(double alpha){
+		if(alpha <= 0 || alpha > 1)
+			throw new IllegalArgumentException("Invalid alpha: " + alpha);
+		_alpha = alpha;
+	}
+
+	@Override
+	public double filter(int rssi, long timestampNanos) {
+		if(!_initialized){
+			_value = rssi;
+			_initialized = true;
+		}else{
+			_value += _alpha * (rssi - _value);
+		}
+		return _value;
+	}
+
+	@Override
+	public double getValue() {
+		return _value;
+	}
+
+	@Override
+	public void reset() {
+		_value = 0;
+		_initialized = false;
+	}
+
+	@Override
+	public RssiFilter copy() {
+		return new EwmaRssiFilter(_alpha);
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.easibeacon.protocol;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Scheduler} backed by a {@link ScheduledExecutorService}, for running the engine outside Android
+ * 
+ * @author inakivazquez
+ *
+ */
+public class ExecutorScheduler implements Scheduler {
+
+	private final ScheduledExecutorService _executor;
+
+	/**
+	 * Pending executions of every task, to be able to cancel them
+	 */
+	private final HashMap<Runnable, ArrayList<Execution>> _pending = new HashMap<Runnable, ArrayList<Execution>>();
+
+	/**
+	 * Constructor
+	 * 
+	 * @param executor the executor running the tasks
+	 */
+	public ExecutorScheduler(ScheduledExecutorService executor){
+		_executor = executor;
+	}
+
+	@Override
+	public synchronized void schedule(Runnable task, long delayMillis) {
+		ArrayList<Execution> executions = _pending.get(task);
+		if(executions == null){
+			executions = new ArrayList<Execution>(1);
+			_pending.put(task, executions);
+		}
+		Execution execution = new Execution(task);
+		executions.add(execution);
+		// The execution cannot complete before this method returns, it needs the lock to finish
+		execution.future = _executor.schedule(execution, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public synchronized void cancel(Runnable task) {
+		ArrayList<Execution> executions = _pending.remove(task);
+		if(executions == null)
+			return;
+		for(int i=0;i<executions.size();i++)
+			executions.get(i).future.cancel(false);
+	}
+
+	private synchronized boolean done(Execution execution){
+		ArrayList<Execution> executions = _pending.get(execution.task);
+		if(executions == null || !executions.remove(execution))
+			return false; // cancelled
+		if(executions.isEmpty())
+			_pending.remove(execution.task);
+		return true;
+	}
+
+	/**
+	 * A single scheduled execution of a task
+	 */
+	private class Execution implements Runnable {
+
+		final Runnable task;
+
+		ScheduledFuture<?> future;
+
+		Execution(Runnable task){
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			if(done(this))
+				task.run();
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.easibeacon.protocol;
+
+import java.util.ArrayList;
+
+/**
+ * Hashed timing wheel expiring the registry entries that have not been seen for a while.
+ * Scheduling or rescheduling an entry is O(1), and every tick only visits the entries of its own slot.
+ * Entries are linked through their own fields, so the wheel does not allocate.
+ * 
+ * @author inakivazquez
+ *
+ */
+final class ExpiryWheel {
+
+	private final IBeaconEntry[] _slots;
+
+	private final int _mask;
+
+	private final long _tickNanos;
+
+	/**
+	 * Last tick processed
+	 */
+	private long _tick = -1;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param slots number of slots, rounded up to a power of two
+	 * @param tickMillis duration of a tick in milliseconds
+	 */
+	public ExpiryWheel(int slots, long tickMillis){
+		int size = Integer.highestOneBit(Math.max(slots, 1));
+		if(size < slots)
+			size <<= 1;
+		_slots = new IBeaconEntry[size];
+		_mask = size - 1;
+		_tickNanos = Math.max(tickMillis, 1) * 1000000L;
+	}
+
+	/**
+	 * Schedules the expiry of an entry, replacing its previous deadline if any
+	 * 
+	 * @param e the entry
+	 * @param deadlineNanos when the entry expires
+	 */
+	public void schedule(IBeaconEntry e, long deadlineNanos){
+		remove(e);
+		// First tick at which the deadline has passed, never one already processed
+		long tick = Math.max((deadlineNanos + _tickNanos - 1) / _tickNanos, _tick + 1);
+		int slot = (int)tick & _mask;
+		e.expiryDeadline = deadlineNanos;
+		e.expirySlot = slot;
+		e.expiryPrev = null;
+		e.expiryNext = _slots[slot];
+		if(e.expiryNext != null)
+			e.expiryNext.expiryPrev = e;
+		_slots[slot] = e;
+	}
+
+	/**
+	 * Removes an entry from the wheel
+	 * 
+	 * @param e the entry
+	 */
+	public void remove(IBeaconEntry e){
+		if(e.expirySlot < 0)
+			return;
+		if(e.expiryPrev != null)
+			e.expiryPrev.expiryNext = e.expiryNext;
+		else
+			_slots[e.expirySlot] = e.expiryNext;
+		if(e.expiryNext != null)
+			e.expiryNext.expiryPrev = e.expiryPrev;
+		e.expiryPrev = null;
+		e.expiryNext = null;
+		e.expirySlot = -1;
+	}
+
+	/**
+	 * Processes the ticks elapsed until now
+	 * 
+	 * @param nowNanos the current time
+	 * @param expired receives the entries whose deadline has passed, which are removed from the wheel
+	 */
+	public void advance(long nowNanos, ArrayList<IBeaconEntry> expired){
+		long now = nowNanos / _tickNanos;
+		if(_tick < 0)
+			_tick = now - 1;
+		// A full turn visits every slot, there is no need to go around more than once
+		long from = Math.max(_tick + 1, now - _mask);
+		for(long tick = from; tick <= now; tick++){
+			IBeaconEntry e = _slots[(int)tick & _mask];
+			while(e != null){
+				IBeaconEntry next = e.expiryNext;
+				if(e.expiryDeadline <= nowNanos){
+					remove(e);
+					expired.add(e);
+				}
+				e = next;
+			}
+		}
+		_tick = Math.max(_tick, now);
+	}
+
+	/**
+	 * Removes all the entries
+	 */
+	public void clear(){
+		for(int i=0;i<_slots.length;i++){
+			IBeaconEntry e = _slots[i];
+			while(e != null){
+				IBeaconEntry next = e.expiryNext;
+				e.expiryPrev = null;
+				e.expiryNext = null;
+				e.expirySlot = -1;
+				e = next;
+			}
+			_slots[i] = null;
+		}
+		_tick = -1;
+	}
+}
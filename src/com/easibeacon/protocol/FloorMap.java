@@ -0,0 +1,218 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.easibeacon.protocol;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Floor map with the iBeacons of known position, the anchors of a {@link PositionEstimator}.
+ * Anchors are numbered in the order they are added, and looked up by identity in an open addressing table.
+ * An estimator sizes its state to the map when created, so all the anchors have to be added before.
+ * <p>
+ * The text format has one anchor per line, <code>UUID major minor x y</code>, with the UUID in hexadecimal
+ * (dashes allowed) and the coordinates in metres. Empty lines and lines starting with <code>#</code> are skipped.
+ * 
+ * @author inakivazquez
+ *
+ */
+public final class FloorMap {
+
+	private long[] _uuidMsbs = new long[16];
+
+	private long[] _uuidLsbs = new long[16];
+
+	private int[] _majorMinors = new int[16];
+
+	private double[] _xs = new double[16];
+
+	private double[] _ys = new double[16];
+
+	private int _size;
+
+	/**
+	 * Anchor index plus one by slot, 0 if empty
+	 */
+	private int[] _slots = new int[32];
+
+	/**
+	 * Loads a floor map from a text file
+	 * 
+	 * @throws IOException if the file cannot be read or has a malformed line
+	 */
+	public static FloorMap load(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try{
+			return load(in);
+		}finally{
+			in.close();
+		}
+	}
+
+	/**
+	 * Loads a floor map from a text stream, which is not closed
+	 * 
+	 * @throws IOException if the stream cannot be read or has a malformed line
+	 */
+	public static FloorMap load(InputStream in) throws IOException {
+		FloorMap map = new FloorMap();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		String line;
+		int number = 0;
+		while((line = reader.readLine()) != null){
+			number++;
+			line = line.trim();
+			if(line.length() == 0 || line.charAt(0) == '#')
+				continue;
+			String[] fields = line.split("\\s+");
+			try{
+				if(fields.length != 5)
+					throw new IllegalArgumentException();
+				String uuid = fields[0].replace("-", "");
+				if(uuid.length() != 32)
+					throw new IllegalArgumentException();
+				map.add(parseHex(uuid, 0), parseHex(uuid, 16), Integer.parseInt(fields[1]), Integer.parseInt(fields[2]),
+						Double.parseDouble(fields[3]), Double.parseDouble(fields[4]));
+			}catch(IllegalArgumentException e){
+				throw new IOException("Malformed anchor at line " + number + ": " + line);
+			}
+		}
+		return map;
+	}
+
+	private static long parseHex(String hex, int offset){
+		long value = 0;
+		for(int i=offset;i<offset+16;i++){
+			int digit = Character.digit(hex.charAt(i), 16);
+			if(digit < 0)
+				throw new IllegalArgumentException();
+			value = (value << 4) | digit;
+		}
+		return value;
+	}
+
+	/**
+	 * Adds an anchor, or moves it if already in the map
+	 * 
+	 * @param uuidMsb the first 8 bytes of the UUID, big endian
+	 * @param uuidLsb the last 8 bytes of the UUID, big endian
+	 * @param major the major number
+	 * @param minor the minor number
+	 * @param x the x coordinate in metres
+	 * @param y the y coordinate in metres
+	 * @return the index of the anchor
+	 */
+	public int add(long uuidMsb, long uuidLsb, int major, int minor, double x, double y){
+		if(major < 0 || major > 0xffff || minor < 0 || minor > 0xffff)
+			throw new IllegalArgumentException("Invalid anchor: " + major + "/" + minor);
+		int majorMinor = (major << 16) | minor;
+		int index = indexOf(uuidMsb, uuidLsb, majorMinor);
+		if(index < 0){
+			if(_size == _xs.length)
+				grow();
+			index = _size++;
+			_uuidMsbs[index] = uuidMsb;
+			_uuidLsbs[index] = uuidLsb;
+			_majorMinors[index] = majorMinor;
+			_slots[slot(uuidMsb, uuidLsb, majorMinor)] = index + 1;
+		}
+		_xs[index] = x;
+		_ys[index] = y;
+		return index;
+	}
+
+	/**
+	 * Finds an anchor by identity
+	 * 
+	 * @param majorMinor the major and minor packed, major in the high half
+	 * @return the index of the anchor, -1 if not in the map
+	 */
+	public int indexOf(long uuidMsb, long uuidLsb, int majorMinor){
+		return _slots[slot(uuidMsb, uuidLsb, majorMinor)] - 1;
+	}
+
+	/**
+	 * @return the slot of the identity, or the empty slot where it would go
+	 */
+	private int slot(long uuidMsb, long uuidLsb, int majorMinor){
+		int mask = _slots.length - 1;
+		int i = RegionIndex.hash(2, uuidMsb, uuidLsb, majorMinor) & mask;
+		while(true){
+			int index = _slots[i] - 1;
+			if(index < 0 || (_majorMinors[index] == majorMinor && _uuidLsbs[index] == uuidLsb && _uuidMsbs[index] == uuidMsb))
+				return i;
+			i = (i + 1) & mask;
+		}
+	}
+
+	private void grow(){
+		int capacity = _xs.length << 1;
+		_uuidMsbs = copyOf(_uuidMsbs, capacity);
+		_uuidLsbs = copyOf(_uuidLsbs, capacity);
+		int[] majorMinors = new int[capacity];
+		System.arraycopy(_majorMinors, 0, majorMinors, 0, _size);
+		_majorMinors = majorMinors;
+		_xs = copyOf(_xs, capacity);
+		_ys = copyOf(_ys, capacity);
+		// Keep the table at most half full
+		_slots = new int[capacity << 1];
+		for(int i=0;i<_size;i++)
+			_slots[slot(_uuidMsbs[i], _uuidLsbs[i], _majorMinors[i])] = i + 1;
+	}
+
+	private long[] copyOf(long[] array, int capacity){
+		long[] copy = new long[capacity];
+		System.arraycopy(array, 0, copy, 0, _size);
+		return copy;
+	}
+
+	private double[] copyOf(double[] array, int capacity){
+		double[] copy = new double[capacity];
+		System.arraycopy(array, 0, copy, 0, _size);
+		return copy;
+	}
+
+	/**
+	 * @return the number of anchors
+	 */
+	public int size(){
+		return _size;
+	}
+
+	/**
+	 * @return the x coordinate of an anchor, in metres
+	 */
+	public double getX(int index){
+		return _xs[index];
+	}
+
+	/**
+	 * @return the y coordinate of an anchor, in metres
+	 */
+	public double getY(int index){
+		return _ys[index];
+	}
+}
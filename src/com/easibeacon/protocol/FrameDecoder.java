@@ -0,0 +1,49 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.easibeacon.protocol;
+
+/**
+ * Decoder of one beacon format, looked up by the AD type of the structure holding the frame.
+ * Only the registered decoders are run, so a format not in use costs nothing.
+ * 
+ * @author inakivazquez
+ *
+ */
+public interface FrameDecoder {
+
+	/**
+	 * @return the AD type of the structures this decoder looks at, such as
+	 * {@link AdStructures#TYPE_MANUFACTURER_SPECIFIC_DATA}
+	 */
+	public int getAdType();
+
+	/**
+	 * Decodes a frame from the payload of an AD structure, without allocating
+	 * 
+	 * @param data the scan record
+	 * @param offset offset of the payload in the scan record, after the AD type
+	 * @param length length of the payload
+	 * @param advertisement receives the decoded fields
+	 * @return <code>true</code> if the payload is a frame of this format, <code>false</code> otherwise.
+	 */
+	public boolean decode(byte[] data, int offset, int length, IBeaconAdvertisement advertisement);
+}
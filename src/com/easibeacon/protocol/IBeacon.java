@@ -31,22 +31,72 @@ import java.io.Serializable;
  */
 public class IBeacon implements Serializable{
 	
-	private static final long serialVersionUID = 1L;
+	private static final long serialVersionUID = 2L;
 	
 	/**
-	 * The UUID of the iBeacon
+	 * Formats of the frames a beacon can be discovered from
 	 */
-	private byte[] _uuid;
+	public static final int FRAME_IBEACON = 0;
+	
+	public static final int FRAME_ALTBEACON = 1;
+	
+	public static final int FRAME_EDDYSTONE_UID = 2;
+	
+	public static final int FRAME_EDDYSTONE_URL = 3;
+	
+	/**
+	 * Telemetry only, never the frame a beacon is discovered from
+	 */
+	public static final int FRAME_EDDYSTONE_TLM = 4;
+	
+	/**
+	 * Proximity zones, see {@link ProximityZones}
+	 */
+	public static final int ZONE_UNKNOWN = 0;
+	
+	public static final int ZONE_IMMEDIATE = 1;
+	
+	public static final int ZONE_NEAR = 2;
+	
+	public static final int ZONE_FAR = 3;
+	
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+	
+	/**
+	 * The UUID of the iBeacon, first and last 8 bytes
+	 */
+	private long _uuidMsb;
+
+	private long _uuidLsb;
 
 	/**
-	 * The Major number of the iBeacon
+	 * <code>false</code> if no UUID has been set
 	 */
-	private int _major;
+	private boolean _hasUuid;
 
 	/**
-	 * The Minor number of the iBeacon
+	 * The Major and Minor numbers of the iBeacon, major in the high half
 	 */
-	private int _minor;
+	private int _majorMinor;
+
+	/**
+	 * The MAC address packed in the lower 48 bits, -1 if unknown
+	 */
+	private long _mac = -1;
+
+	/**
+	 * Hash of the identity (UUID, major, minor and MAC address), updated when any of them changes
+	 */
+	private int _hashCode;
+
+	/**
+	 * The UUID as bytes and hex strings, built when first requested
+	 */
+	private transient byte[] _uuid;
+
+	private transient String _uuidHexString;
+
+	private transient String _uuidHexStringDashed;
 
 	/**
 	 * <code>true</code> if the iBeacon is an easiBeacon
@@ -64,12 +114,28 @@ public class IBeacon implements Serializable{
 	private int _txPower;
 	
 	/**
-	 * A calculated proximity of the iBeacon based on <code>_powerValue</code>
+	 * A calculated proximity of the iBeacon based on <code>_powerValue</code>. This and the other measures are
+	 * updated by the engine while in view, see {@link IBeaconSample} for a consistent copy.
+	 */	
+	private volatile int _proximity;
+
+	/**
+	 * The same proximity in centimetres, -1 if unknown
+	 */	
+	private volatile int _proximityCm;
+
+	/**
+	 * The proximity zone, one of the <code>ZONE_</code> constants
 	 */	
-	private int _proximity;
+	private volatile int _zone = ZONE_UNKNOWN;
 
 	/**
-	 * The MAC address reported by the iBeacon
+	 * The filtered RSSI measured for the iBeacon, 0 if unknown
+	 */	
+	private volatile int _rssi;
+
+	/**
+	 * The MAC address reported by the iBeacon, built from <code>_mac</code> when first requested
 	 */	
 	private String _macAddress;
 	
@@ -93,6 +159,28 @@ public class IBeacon implements Serializable{
 	 */		
 	private boolean _connectable = false;
 	
+	/**
+	 * The format of the frame the beacon was discovered from
+	 */		
+	private int _frameType = FRAME_IBEACON;
+	
+	/**
+	 * The URL broadcast by an Eddystone-URL beacon
+	 */		
+	private String _url;
+	
+	/**
+	 * The Eddystone telemetry: battery voltage in millivolts, temperature in Celsius, advertisements sent and
+	 * time since power-up in tenths of a second. The battery voltage is -1 until a TLM frame is received.
+	 */		
+	private int _batteryVoltage = -1;
+	
+	private float _temperature = Float.NaN;
+	
+	private long _advertisementCount = -1;
+	
+	private long _uptime = -1;
+	
 	/**
 	 * A user selected name for the iBeacon (to be used)
 	 */
@@ -112,11 +200,29 @@ public class IBeacon implements Serializable{
 	 * @param proximity Proximity in meters
 	 */
 	public IBeacon(byte[] uuid, int major, int minor, int proximity){
-		_uuid = uuid;
-		_major = major;
-		_minor = minor;
+		setUuid(uuid);
+		_majorMinor = pack(major, minor);
+		updateHashCode();
+		
+		setProximity(proximity);
+	}
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param uuidMsb The first 8 bytes of the UUID, big endian
+	 * @param uuidLsb The last 8 bytes of the UUID, big endian
+	 * @param major The Major number (1-65535)
+	 * @param minor The Minor number (1-65535)
+	 */
+	public IBeacon(long uuidMsb, long uuidLsb, int major, int minor){
+		_uuidMsb = uuidMsb;
+		_uuidLsb = uuidLsb;
+		_hasUuid = true;
+		_majorMinor = pack(major, minor);
+		updateHashCode();
 		
-		_proximity = proximity;
+		setProximity(-1);
 	}
 	
 	/**
@@ -138,11 +244,31 @@ public class IBeacon implements Serializable{
 	}
 	
 	public String getMacAddress() {
+		if(_macAddress == null && _mac >= 0){
+			char[] c = new char[17];
+			for(int i=0;i<6;i++){
+				int b = (int)(_mac >>> (40 - i * 8)) & 0xff;
+				c[i*3] = HEX_DIGITS[b >>> 4];
+				c[i*3+1] = HEX_DIGITS[b & 0x0f];
+				if(i < 5)
+					c[i*3+2] = ':';
+			}
+			_macAddress = new String(c);
+		}
 		return _macAddress;
 	}
 
 	public void setMacAddress(String _macAddress) {
 		this._macAddress = _macAddress;
+		this._mac = Utils.macToLong(_macAddress);
+		updateHashCode();
+	}
+
+	/**
+	 * @return the MAC address packed in the lower 48 bits, -1 if unknown
+	 */
+	public long getMacAddressLong() {
+		return _mac;
 	}
 
 	public void setVersionModel(String _versionModel) {
@@ -160,44 +286,88 @@ public class IBeacon implements Serializable{
 	}
 	
 	public byte[] getUuid() {
+		if(_uuid == null && _hasUuid){
+			byte[] uuid = new byte[16];
+			for(int i=0;i<8;i++){
+				uuid[i] = (byte)(_uuidMsb >>> (56 - i * 8));
+				uuid[i+8] = (byte)(_uuidLsb >>> (56 - i * 8));
+			}
+			_uuid = uuid;
+		}
 		return _uuid;
 	}
 	
+	/**
+	 * @return the first 8 bytes of the UUID, big endian
+	 */
+	public long getUuidMostSignificantBits() {
+		return _uuidMsb;
+	}
+	
+	/**
+	 * @return the last 8 bytes of the UUID, big endian
+	 */
+	public long getUuidLeastSignificantBits() {
+		return _uuidLsb;
+	}
+	
 	public String getUuidHexString(){
-		String s = "";
-		for(int i=0;i<_uuid.length;i++)
-			s += String.format("%02X", _uuid[i]);
-		return s;	
+		if(_uuidHexString == null && _hasUuid){
+			char[] c = new char[32];
+			for(int i=0;i<16;i++){
+				c[i] = HEX_DIGITS[(int)(_uuidMsb >>> (60 - i * 4)) & 0x0f];
+				c[i+16] = HEX_DIGITS[(int)(_uuidLsb >>> (60 - i * 4)) & 0x0f];
+			}
+			_uuidHexString = new String(c);
+		}
+		return _uuidHexString;	
 	}
 	
 	public String getUuidHexStringDashed(){
-		String uuid = getUuidHexString();
-		String newUuid = uuid.substring(0,8) + "-" +
-				uuid.substring(8, 12) + "-" +
-				uuid.substring(12, 16) + "-" +
-				uuid.substring(16, 20) + "-" + uuid.substring(20);
-		return newUuid;
+		if(_uuidHexStringDashed == null && _hasUuid){
+			String uuid = getUuidHexString();
+			_uuidHexStringDashed = uuid.substring(0,8) + "-" +
+					uuid.substring(8, 12) + "-" +
+					uuid.substring(12, 16) + "-" +
+					uuid.substring(16, 20) + "-" + uuid.substring(20);
+		}
+		return _uuidHexStringDashed;
 				
 	}
 	
 	public void setUuid(byte[] _uuid) {
 		this._uuid = _uuid;
+		this._hasUuid = _uuid != null && _uuid.length == 16;
+		this._uuidMsb = _hasUuid ? Utils.readLong(_uuid, 0) : 0;
+		this._uuidLsb = _hasUuid ? Utils.readLong(_uuid, 8) : 0;
+		this._uuidHexString = null;
+		this._uuidHexStringDashed = null;
+		updateHashCode();
 	}
 	
 	public int getMajor() {
-		return _major;
+		return _majorMinor >>> 16;
 	}
 	
 	public void setMajor(int _major) {
-		this._major = _major;
+		this._majorMinor = pack(_major, getMinor());
+		updateHashCode();
 	}
 	
 	public int getMinor() {
-		return _minor;
+		return _majorMinor & 0xffff;
 	}
 	
 	public void setMinor(int _minor) {
-		this._minor = _minor;
+		this._majorMinor = pack(getMajor(), _minor);
+		updateHashCode();
+	}
+	
+	/**
+	 * @return the major and minor numbers packed into one int, major in the high half
+	 */
+	public int getMajorMinor() {
+		return _majorMinor;
 	}
 	
 	public String getName() {
@@ -238,9 +408,49 @@ public class IBeacon implements Serializable{
 	
 	public void setProximity(int _proximity) {
 		this._proximity = _proximity;
+		this._proximityCm = _proximity < 0 ? -1 : _proximity * 100;
+	}
+
+	/**
+	 * @return the calculated proximity in centimetres, -1 if unknown
+	 */
+	public int getProximityCm() {
+		return _proximityCm;
+	}
+
+	/**
+	 * Sets the proximity in centimetres, also updating the proximity in meters
+	 * 
+	 * @param _proximityCm the proximity in centimetres, -1 if unknown
+	 */
+	public void setProximityCm(int _proximityCm) {
+		this._proximityCm = _proximityCm;
+		this._proximity = _proximityCm < 0 ? -1 : _proximityCm / 100;
 	}
 	
 
+	/**
+	 * @return the proximity zone, one of the <code>ZONE_</code> constants
+	 */
+	public int getZone() {
+		return _zone;
+	}
+
+	public void setZone(int _zone) {
+		this._zone = _zone;
+	}
+
+	/**
+	 * @return the filtered RSSI measured for the iBeacon, 0 if unknown
+	 */
+	public int getRssi() {
+		return _rssi;
+	}
+
+	public void setRssi(int _rssi) {
+		this._rssi = _rssi;
+	}
+
 	public int getBattery() {
 		return _battery;
 	}
@@ -265,6 +475,66 @@ public class IBeacon implements Serializable{
 		this._powerValue = _powerValue;
 	}
 	
+	/**
+	 * @return the format of the frame the beacon was discovered from, one of the <code>FRAME_</code> constants
+	 */
+	public int getFrameType() {
+		return _frameType;
+	}
+
+	public void setFrameType(int _frameType) {
+		this._frameType = _frameType;
+	}
+
+	/**
+	 * @return the URL broadcast by an Eddystone-URL beacon, <code>null</code> for other beacons
+	 */
+	public String getUrl() {
+		return _url;
+	}
+
+	public void setUrl(String _url) {
+		this._url = _url;
+	}
+
+	/**
+	 * @return the battery voltage in millivolts reported by Eddystone telemetry, -1 if unknown
+	 */
+	public int getBatteryVoltage() {
+		return _batteryVoltage;
+	}
+
+	/**
+	 * @return the temperature in Celsius reported by Eddystone telemetry, <code>Float.NaN</code> if unknown
+	 */
+	public float getTemperature() {
+		return _temperature;
+	}
+
+	/**
+	 * @return the advertisements sent since power-up reported by Eddystone telemetry, -1 if unknown
+	 */
+	public long getAdvertisementCount() {
+		return _advertisementCount;
+	}
+
+	/**
+	 * @return the time since power-up in tenths of a second reported by Eddystone telemetry, -1 if unknown
+	 */
+	public long getUptime() {
+		return _uptime;
+	}
+
+	/**
+	 * Sets the Eddystone telemetry
+	 */
+	public void setTelemetry(int batteryVoltage, float temperature, long advertisementCount, long uptime) {
+		this._batteryVoltage = batteryVoltage;
+		this._temperature = temperature;
+		this._advertisementCount = advertisementCount;
+		this._uptime = uptime;
+	}
+	
 	public boolean isConnectable(){
 		return _connectable;
 	}
@@ -279,19 +549,26 @@ public class IBeacon implements Serializable{
 	 */
 	@Override
 	public boolean equals(Object obj) {
+	    if (obj == this) {
+	        return true;
+	    }
 	    if (obj == null) {
 	        return false;
 	    }
 	    if (getClass() != obj.getClass()) {
 	        return false;
 	    }
-	   // Log.i(Utils.LOG_TAG, "Comparing");
 	    final IBeacon ibeacon = (IBeacon) obj;
-		if(this.isSameRegionAs(ibeacon) && _macAddress.equals(ibeacon.getMacAddress()))
+		if(_hashCode == ibeacon._hashCode && _mac == ibeacon._mac && this.isSameRegionAs(ibeacon))
 			return true;
 		return false;
 	}
 	
+	@Override
+	public int hashCode() {
+		return _hashCode;
+	}
+	
 	/**
 	 * Returns true if the iBeacon to compare represents the same region (same UUID, major and minor).
 	 */
@@ -299,13 +576,22 @@ public class IBeacon implements Serializable{
 	    if (ibeacon == null) {
 	        return false;
 	    }
-		if(getUuidHexString().equals(ibeacon.getUuidHexString())
-				&& _major == ibeacon.getMajor()
-				&& _minor == ibeacon.getMinor())
+		if(_majorMinor == ibeacon._majorMinor
+				&& _uuidLsb == ibeacon._uuidLsb
+				&& _uuidMsb == ibeacon._uuidMsb
+				&& _hasUuid == ibeacon._hasUuid)
 			return true;
 		return false;
 	}
 	
+	private static int pack(int major, int minor){
+		return (major << 16) | (minor & 0xffff);
+	}
+	
+	private void updateHashCode(){
+		_hashCode = IBeaconRegistry.hash(_uuidMsb, _uuidLsb, _majorMinor, _mac);
+	}
+	
 	@Override
 	public String toString() {
 		return "UUID:" + this.getUuidHexString() + " M:" + this.getMajor() + " m:" + this.getMinor() + " p:" + this.getProximity();
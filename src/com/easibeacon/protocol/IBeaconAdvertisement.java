@@ -0,0 +1,316 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.easibeacon.protocol;
+
+/**
+ * Reusable read-only view over a beacon advertisement.
+ * The AD structures of the scan record are walked once, and each structure is handed to the {@link FrameDecoder}s
+ * registered for its AD type until one of them recognizes a frame. The decoders leave the fields here, so wrapping
+ * a packet does not allocate. An {@link IBeacon} is only created through {@link #toIBeacon()}, when the beacon is
+ * seen for the first time.
+ *
+ * @author inakivazquez
+ *
+ */
+public final class IBeaconAdvertisement {
+
+	private static final FrameDecoder[] NO_DECODERS = new FrameDecoder[0];
+
+	private final AdStructures _structures = new AdStructures();
+
+	/**
+	 * Decoders by AD type, only the types with a decoder are looked at
+	 */
+	private final FrameDecoder[][] _decoders = new FrameDecoder[256][];
+
+	/**
+	 * The scan record currently wrapped, <code>null</code> if none
+	 */
+	private byte[] _data;
+
+	/**
+	 * Index of the decoded frame among the AD structures
+	 */
+	private int _frameIndex;
+
+	private int _frameType;
+
+	private long _uuidMsb;
+
+	private long _uuidLsb;
+
+	private int _major;
+
+	private int _minor;
+
+	private int _powerValue;
+
+	/**
+	 * Encoded Eddystone URL of the frame, copied out of the scan record, <code>_urlLength</code> is -1 if none.
+	 * Sized for the longest AD structure.
+	 */
+	private final byte[] _url = new byte[255];
+
+	private int _urlLength = -1;
+
+	private int _batteryVoltage;
+
+	private float _temperature;
+
+	private long _advertisementCount;
+
+	private long _uptime;
+
+	IBeaconAdvertisement(){
+		for(int i=0;i<_decoders.length;i++)
+			_decoders[i] = NO_DECODERS;
+	}
+
+	/**
+	 * Registers a decoder, tried after those already registered for the same AD type
+	 */
+	void addDecoder(FrameDecoder decoder){
+		int type = decoder.getAdType() & 0xff;
+		FrameDecoder[] old = _decoders[type];
+		for(int i=0;i<old.length;i++){
+			if(old[i] == decoder)
+				return;
+		}
+		FrameDecoder[] decoders = new FrameDecoder[old.length + 1];
+		System.arraycopy(old, 0, decoders, 0, old.length);
+		decoders[old.length] = decoder;
+		_decoders[type] = decoders;
+	}
+
+	/**
+	 * Unregisters a decoder
+	 */
+	void removeDecoder(FrameDecoder decoder){
+		int type = decoder.getAdType() & 0xff;
+		FrameDecoder[] old = _decoders[type];
+		for(int i=0;i<old.length;i++){
+			if(old[i] == decoder){
+				FrameDecoder[] decoders = new FrameDecoder[old.length - 1];
+				System.arraycopy(old, 0, decoders, 0, i);
+				System.arraycopy(old, i + 1, decoders, i, old.length - i - 1);
+				_decoders[type] = decoders.length == 0 ? NO_DECODERS : decoders;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Wraps a scan record if it contains a known frame, wherever it is among the AD structures
+	 *
+	 * @param data the advertisement data
+	 * @return <code>true</code> if a frame was decoded, <code>false</code> otherwise.
+	 */
+	boolean wrap(byte[] data){
+		_data = null;
+		int count = _structures.parse(data);
+		for(int i=0;i<count;i++){
+			FrameDecoder[] decoders = _decoders[_structures.getType(i)];
+			for(int j=0;j<decoders.length;j++){
+				_urlLength = -1;
+				if(decoders[j].decode(data, _structures.getOffset(i), _structures.getLength(i), this)){
+					_frameIndex = i;
+					_data = data;
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Sets the identity of the decoded frame, called by the decoders
+	 * 
+	 * @param frameType the type of frame, one of the <code>FRAME_</code> constants of {@link IBeacon}
+	 * @param uuidMsb the first 8 bytes of the UUID, or of the identifier mapped to it, big endian
+	 * @param uuidLsb the last 8 bytes of the UUID, big endian
+	 * @param major the major number, 0 if the format has none
+	 * @param minor the minor number, 0 if the format has none
+	 * @param powerValue the RSSI at 1 meter
+	 */
+	public void setFrame(int frameType, long uuidMsb, long uuidLsb, int major, int minor, int powerValue){
+		_frameType = frameType;
+		_uuidMsb = uuidMsb;
+		_uuidLsb = uuidLsb;
+		_major = major;
+		_minor = minor;
+		_powerValue = powerValue;
+	}
+
+	/**
+	 * Sets the URL of an Eddystone-URL frame, called by the decoders. The URL is copied still encoded, it is
+	 * only expanded into a string by {@link #getUrl()}.
+	 * 
+	 * @param data the buffer with the URL
+	 * @param offset the position of the scheme byte
+	 * @param length the length of the encoded URL, scheme byte included
+	 */
+	public void setUrl(byte[] data, int offset, int length){
+		System.arraycopy(data, offset, _url, 0, length);
+		_urlLength = length;
+	}
+
+	/**
+	 * Sets the telemetry of an Eddystone-TLM frame, called by the decoders
+	 * 
+	 * @param batteryVoltage the battery voltage in millivolts, 0 if not supported
+	 * @param temperature the temperature in Celsius, <code>Float.NaN</code> if not supported
+	 * @param advertisementCount the advertisements sent since power-up
+	 * @param uptime the time since power-up, in tenths of a second
+	 */
+	public void setTelemetry(int batteryVoltage, float temperature, long advertisementCount, long uptime){
+		_frameType = IBeacon.FRAME_EDDYSTONE_TLM;
+		_batteryVoltage = batteryVoltage;
+		_temperature = temperature;
+		_advertisementCount = advertisementCount;
+		_uptime = uptime;
+	}
+
+	/**
+	 * @return the AD structures of the wrapped scan record
+	 */
+	public AdStructures getStructures() {
+		return _structures;
+	}
+
+	/**
+	 * @return <code>true</code> if other AD structures, like the scan response, follow the decoded frame
+	 */
+	public boolean hasStructuresAfterFrame() {
+		return _frameIndex < _structures.size() - 1;
+	}
+
+	/**
+	 * @return the type of the decoded frame, one of the <code>FRAME_</code> constants of {@link IBeacon}
+	 */
+	public int getFrameType() {
+		return _frameType;
+	}
+
+	public int getMajor() {
+		return _major;
+	}
+
+	public int getMinor() {
+		return _minor;
+	}
+
+	public int getPowerValue() {
+		return _powerValue;
+	}
+
+	/**
+	 * @return the major and minor numbers packed into one int, major in the high half
+	 */
+	public int getMajorMinor() {
+		return (_major << 16) | _minor;
+	}
+
+	/**
+	 * @return the first 8 bytes of the UUID, big endian
+	 */
+	public long getUuidMostSignificantBits() {
+		return _uuidMsb;
+	}
+
+	/**
+	 * @return the last 8 bytes of the UUID, big endian
+	 */
+	public long getUuidLeastSignificantBits() {
+		return _uuidLsb;
+	}
+
+	/**
+	 * @return <code>true</code> if the frame carries a URL
+	 */
+	public boolean hasUrl() {
+		return _urlLength >= 0;
+	}
+
+	/**
+	 * Expands the URL of an Eddystone-URL frame. It allocates the string, so it is only called when the URL of
+	 * a beacon is new or changed, see {@link #urlEquals(byte[])}.
+	 * 
+	 * @return the URL, <code>null</code> for other frames
+	 */
+	public String getUrl() {
+		return _urlLength < 0 ? null : EddystoneDecoder.decodeUrl(_url, 0, _urlLength);
+	}
+
+	/**
+	 * @param encoded a URL as copied by {@link #copyUrl()}, or <code>null</code>
+	 * @return <code>true</code> if the URL of the frame is the same, still encoded
+	 */
+	boolean urlEquals(byte[] encoded){
+		if(encoded == null || encoded.length != _urlLength)
+			return false;
+		for(int i=0;i<_urlLength;i++){
+			if(encoded[i] != _url[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return a copy of the encoded URL, <code>null</code> if none
+	 */
+	byte[] copyUrl() {
+		if(_urlLength < 0)
+			return null;
+		byte[] copy = new byte[_urlLength];
+		System.arraycopy(_url, 0, copy, 0, _urlLength);
+		return copy;
+	}
+
+	public int getBatteryVoltage() {
+		return _batteryVoltage;
+	}
+
+	public float getTemperature() {
+		return _temperature;
+	}
+
+	public long getAdvertisementCount() {
+		return _advertisementCount;
+	}
+
+	public long getUptime() {
+		return _uptime;
+	}
+
+	/**
+	 * Creates a new iBeacon from the wrapped advertisement
+	 *
+	 * @return the new iBeacon
+	 */
+	IBeacon toIBeacon(){
+		IBeacon ibeacon = new IBeacon(_uuidMsb, _uuidLsb, _major, _minor);
+		ibeacon.setPowerValue(_powerValue);
+		ibeacon.setFrameType(_frameType);
+		ibeacon.setUrl(getUrl());
+		return ibeacon;
+	}
+}
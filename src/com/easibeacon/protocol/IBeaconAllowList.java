@@ -0,0 +1,277 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.easibeacon.protocol;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.CRC32;
+
+/**
+ * List of the iBeacon identities (UUID, major and minor) accepted during the scan.
+ * The identities are kept sorted in a binary file which is memory-mapped and binary searched, and a
+ * {@link BloomFilter} in front of it rejects most of the unknown beacons without touching the list.
+ * 
+ * @author inakivazquez
+ *
+ */
+public final class IBeaconAllowList {
+
+	/**
+	 * Identifies the binary format, "EBAL"
+	 */
+	private static final int MAGIC = 0x4542414c;
+
+	private static final int VERSION = 1;
+
+	/**
+	 * Size of the file header: magic, version and number of identities
+	 */
+	private static final int HEADER_LENGTH = 12;
+
+	/**
+	 * Size of one identity: UUID and packed major and minor
+	 */
+	private static final int RECORD_LENGTH = 20;
+
+	private static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+
+	private final ByteBuffer _records;
+
+	private final int _size;
+
+	private final BloomFilter _bloomFilter;
+
+	private IBeaconAllowList(ByteBuffer records, int size, BloomFilter bloomFilter){
+		_records = records;
+		_size = size;
+		_bloomFilter = bloomFilter;
+	}
+
+	/**
+	 * Memory-maps an identity file saved with {@link #write(File, long[], long[], int[], int)}, building its
+	 * Bloom filter in the heap
+	 * 
+	 * @param identities the identity file
+	 * @return the allow list
+	 * @throws IOException if the file cannot be read or is not an identity file
+	 */
+	public static IBeaconAllowList load(File identities) throws IOException {
+		return load(identities, null);
+	}
+
+	/**
+	 * Memory-maps an identity file and its prebuilt Bloom filter. The filter records the number of identities and
+	 * the checksum of the file it was built from. If they do not match, the filter is stale and would reject
+	 * identities of the list, so it is ignored and built again in the heap.
+	 * 
+	 * @param identities the identity file
+	 * @param bloomFilter the file of the Bloom filter, written by {@link #writeBloomFilter(File, File)}, or
+	 * <code>null</code> to build it from the identities
+	 * @return the allow list
+	 * @throws IOException if the files cannot be read or are corrupted
+	 */
+	public static IBeaconAllowList load(File identities, File bloomFilter) throws IOException {
+		ByteBuffer records = map(identities);
+		int size = records.capacity() / RECORD_LENGTH;
+		long checksum = checksum(records);
+		BloomFilter filter = null;
+		if(bloomFilter != null){
+			filter = BloomFilter.load(bloomFilter);
+			if(filter.getSourceCount() != size || filter.getSourceChecksum() != checksum)
+				filter = null;
+		}
+		if(filter == null)
+			filter = buildBloomFilter(records, size, checksum);
+		return new IBeaconAllowList(records, size, filter);
+	}
+
+	/**
+	 * Builds the Bloom filter of an identity file and saves it, for {@link #load(File, File)}
+	 * 
+	 * @param identities the identity file
+	 * @param bloomFilter the destination file of the filter
+	 * @throws IOException if the identity file cannot be read or the filter cannot be written
+	 */
+	public static void writeBloomFilter(File identities, File bloomFilter) throws IOException {
+		ByteBuffer records = map(identities);
+		int size = records.capacity() / RECORD_LENGTH;
+		buildBloomFilter(records, size, checksum(records)).writeTo(bloomFilter);
+	}
+
+	private static BloomFilter buildBloomFilter(ByteBuffer records, int size, long checksum){
+		BloomFilter filter = BloomFilter.create(Math.max(size, 1), DEFAULT_FALSE_POSITIVE_RATE);
+		for(int i=0;i<size;i++){
+			int position = i * RECORD_LENGTH;
+			filter.put(records.getLong(position), records.getLong(position + 8), records.getInt(position + 16));
+		}
+		filter.setSource(size, checksum);
+		return filter;
+	}
+
+	/**
+	 * @return the CRC-32 of the records
+	 */
+	private static long checksum(ByteBuffer records){
+		CRC32 crc = new CRC32();
+		ByteBuffer buffer = records.duplicate();
+		buffer.clear();
+		byte[] chunk = new byte[8192];
+		while(buffer.hasRemaining()){
+			int n = Math.min(chunk.length, buffer.remaining());
+			buffer.get(chunk, 0, n);
+			crc.update(chunk, 0, n);
+		}
+		return crc.getValue();
+	}
+
+	private static ByteBuffer map(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if(buffer.capacity() < HEADER_LENGTH || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+				throw new IOException("Not an identity file: " + file);
+			int size = buffer.getInt(8);
+			if(size < 0 || HEADER_LENGTH + (long)size * RECORD_LENGTH != buffer.capacity())
+				throw new IOException("Corrupted identity file: " + file);
+			buffer.position(HEADER_LENGTH);
+			ByteBuffer records = buffer.slice();
+			// The binary search relies on the order
+			for(int i=1;i<size;i++){
+				int position = i * RECORD_LENGTH;
+				if(compare(records, position - RECORD_LENGTH, records.getLong(position), records.getLong(position + 8), records.getInt(position + 16)) >= 0)
+					throw new IOException("Identity file not sorted: " + file);
+			}
+			return records;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Saves a set of identities in the binary form read by {@link #load(File)}, sorting and removing duplicates
+	 * 
+	 * @param identities the destination file
+	 * @param uuidMsbs the first 8 bytes of every UUID, big endian
+	 * @param uuidLsbs the last 8 bytes of every UUID, big endian
+	 * @param majorMinors the major and minor numbers, packed as in {@link IBeacon#getMajorMinor()}
+	 * @param count the number of identities
+	 * @throws IOException if the file cannot be written
+	 */
+	public static void write(File identities, long[] uuidMsbs, long[] uuidLsbs, int[] majorMinors, int count) throws IOException {
+		ByteBuffer records = ByteBuffer.allocate(count * RECORD_LENGTH);
+		for(int i=0;i<count;i++)
+			records.putLong(uuidMsbs[i]).putLong(uuidLsbs[i]).putInt(majorMinors[i]);
+		// Sort through an index, the records are compared in place
+		Integer[] order = new Integer[count];
+		for(int i=0;i<count;i++)
+			order[i] = i * RECORD_LENGTH;
+		final ByteBuffer unsorted = records;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return IBeaconAllowList.compare(unsorted, a, unsorted.getLong(b), unsorted.getLong(b + 8), unsorted.getInt(b + 16));
+			}
+		});
+		ByteBuffer out = ByteBuffer.allocate(HEADER_LENGTH + count * RECORD_LENGTH);
+		out.position(HEADER_LENGTH);
+		int size = 0;
+		for(int i=0;i<count;i++){
+			int position = order[i];
+			long msb = unsorted.getLong(position);
+			long lsb = unsorted.getLong(position + 8);
+			int majorMinor = unsorted.getInt(position + 16);
+			if(size > 0 && compare(out, out.position() - RECORD_LENGTH, msb, lsb, majorMinor) == 0)
+				continue;
+			out.putLong(msb).putLong(lsb).putInt(majorMinor);
+			size++;
+		}
+		out.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, size);
+		out.flip();
+		FileOutputStream stream = new FileOutputStream(identities);
+		try {
+			FileChannel channel = stream.getChannel();
+			while(out.hasRemaining())
+				channel.write(out);
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Checks an identity, first against the Bloom filter and then, only if the filter does not reject it,
+	 * against the list itself
+	 * 
+	 * @return <code>true</code> if the identity is in the list
+	 */
+	public boolean contains(long uuidMsb, long uuidLsb, int majorMinor){
+		if(!_bloomFilter.mightContain(uuidMsb, uuidLsb, majorMinor))
+			return false;
+		int low = 0;
+		int high = _size - 1;
+		while(low <= high){
+			int middle = (low + high) >>> 1;
+			int c = compare(_records, middle * RECORD_LENGTH, uuidMsb, uuidLsb, majorMinor);
+			if(c < 0)
+				low = middle + 1;
+			else if(c > 0)
+				high = middle - 1;
+			else
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the number of identities in the list
+	 */
+	public int size(){
+		return _size;
+	}
+
+	public BloomFilter getBloomFilter(){
+		return _bloomFilter;
+	}
+
+	/**
+	 * Compares the record at a position with an identity
+	 */
+	private static int compare(ByteBuffer records, int position, long uuidMsb, long uuidLsb, int majorMinor){
+		long msb = records.getLong(position);
+		if(msb != uuidMsb)
+			return msb < uuidMsb ? -1 : 1;
+		long lsb = records.getLong(position + 8);
+		if(lsb != uuidLsb)
+			return lsb < uuidLsb ? -1 : 1;
+		int mm = records.getInt(position + 16);
+		if(mm != majorMinor)
+			return mm < majorMinor ? -1 : 1;
+		return 0;
+	}
+}
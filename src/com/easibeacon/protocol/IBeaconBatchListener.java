@@ -0,0 +1,37 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.easibeacon.protocol;
+
+/**
+ * Listener receiving the iBeacon events grouped, one {@link IBeaconDelta} per processing tick
+ * 
+ * @author inakivazquez
+ *
+ */
+public interface IBeaconBatchListener {
+
+	/**
+	 * Called once per processing tick in which something changed
+	 * @param delta the iBeacons added, updated and removed, and the regions left and entered
+	 */
+	public void onDelta(IBeaconDelta delta);
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.easibeacon.protocol;
+
+/**
+ * Decodes iBeacon frames, in the manufacturer specific data. Registered by default.
+ * 
+ * @author inakivazquez
+ *
+ */
+public final class IBeaconDecoder implements FrameDecoder {
+
+	/**
+	 * Minimum length of the payload: company, type, length, UUID, major, minor and power
+	 */
+	private static final int MIN_FRAME_LENGTH = 4 + IBeaconEngine.ADV_UUID_LENGTH + 5;
+
+	/**
+	 * iBeacon type inside the manufacturer specific data
+	 */
+	private static final int IBEACON_TYPE = 0x02;
+
+	@Override
+	public int getAdType() {
+		return AdStructures.TYPE_MANUFACTURER_SPECIFIC_DATA;
+	}
+
+	@Override
+	public boolean decode(byte[] data, int offset, int length, IBeaconAdvertisement advertisement) {
+		// As before, the company identifier is not checked
+		if(length < MIN_FRAME_LENGTH || data[offset+2] != IBEACON_TYPE)
+			return false;
+		int uuid = offset + 4;
+		int position = uuid + IBeaconEngine.ADV_UUID_LENGTH;
+		int major = ((data[position] << 8) & 0x0000ff00) | (data[position+1] & 0x000000ff);
+		int minor = ((data[position+2] << 8) & 0x0000ff00) | (data[position+3] & 0x000000ff);
+		advertisement.setFrame(IBeacon.FRAME_IBEACON, Utils.readLong(data, uuid), Utils.readLong(data, uuid + 8),
+				major, minor, data[position+4]);
+		return true;
+	}
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.easibeacon.protocol;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Immutable set of changes produced by one processing tick of the {@link IBeaconEngine}: an advertisement, a batch
+ * of advertisements, an expiry check or the end of a scan window. The iBeacons found, updated or moved to another
+ * zone come as {@link IBeaconSample}s, with their values at the end of the tick.
+ * 
+ * @author inakivazquez
+ *
+ */
+public final class IBeaconDelta {
+
+	private final long _timestampNanos;
+
+	private final List<IBeaconSample> _added;
+
+	private final List<IBeaconSample> _updated;
+
+	private final List<IBeacon> _removed;
+
+	private final List<IBeacon> _exited;
+
+	private final List<IBeacon> _entered;
+
+	private final List<IBeaconSample> _zoneChanged;
+
+	private final List<Region> _regionsExited;
+
+	private final List<Region> _regionsEntered;
+
+	/**
+	 * Constructor, the lists are copied
+	 */
+	IBeaconDelta(long timestampNanos, List<IBeaconSample> added, List<IBeaconSample> updated, List<IBeacon> removed,
+			List<IBeacon> exited, List<IBeacon> entered, List<IBeaconSample> zoneChanged, List<Region> regionsExited,
+			List<Region> regionsEntered){
+		_timestampNanos = timestampNanos;
+		_added = copy(added);
+		_updated = copy(updated);
+		_removed = copy(removed);
+		_exited = copy(exited);
+		_entered = copy(entered);
+		_zoneChanged = copy(zoneChanged);
+		_regionsExited = copy(regionsExited);
+		_regionsEntered = copy(regionsEntered);
+	}
+
+	/**
+	 * Merges two consecutive deltas into one with the same net effect, keeping one entry per iBeacon.
+	 * An iBeacon added in the first and removed in the second is dropped, and so is a region entered in the
+	 * first and left in the second. An iBeacon removed in the first and added again in the second is only
+	 * reported as added, as it is present at the end.
+	 * 
+	 * @param older the first delta
+	 * @param newer the delta following it
+	 * @return the merged delta
+	 */
+	static IBeaconDelta coalesce(IBeaconDelta older, IBeaconDelta newer){
+		LinkedHashMap<IBeacon, IBeaconSample> added = index(older._added);
+		LinkedHashSet<IBeacon> removed = new LinkedHashSet<IBeacon>(older._removed);
+		// Found and lost again in between, as if never seen
+		LinkedHashSet<IBeacon> vanished = new LinkedHashSet<IBeacon>();
+		for(int i=0;i<newer._removed.size();i++){
+			IBeacon ibeacon = newer._removed.get(i);
+			if(added.remove(ibeacon) == null)
+				removed.add(ibeacon);
+			else
+				vanished.add(ibeacon);
+		}
+		LinkedHashMap<IBeacon, IBeaconSample> updated = index(older._updated);
+		for(int i=0;i<newer._updated.size();i++){
+			IBeaconSample sample = newer._updated.get(i);
+			// Found in the first, so reported as found with the latest values
+			if(added.containsKey(sample.getIBeacon()))
+				added.put(sample.getIBeacon(), sample);
+			else
+				updated.put(sample.getIBeacon(), sample);
+		}
+		for(int i=0;i<newer._added.size();i++){
+			IBeaconSample sample = newer._added.get(i);
+			// Lost and found again in between, so present at the end
+			removed.remove(sample.getIBeacon());
+			added.put(sample.getIBeacon(), sample);
+		}
+		updated.keySet().removeAll(added.keySet());
+		updated.keySet().removeAll(removed);
+		LinkedHashMap<IBeacon, IBeaconSample> zoneChanged = index(older._zoneChanged);
+		for(int i=0;i<newer._zoneChanged.size();i++)
+			zoneChanged.put(newer._zoneChanged.get(i).getIBeacon(), newer._zoneChanged.get(i));
+		zoneChanged.keySet().removeAll(removed);
+		zoneChanged.keySet().removeAll(vanished);
+		return new IBeaconDelta(newer._timestampNanos, new ArrayList<IBeaconSample>(added.values()),
+				new ArrayList<IBeaconSample>(updated.values()), new ArrayList<IBeacon>(removed),
+				netExited(older._exited, older._entered, newer._exited),
+				netEntered(older._entered, newer._exited, newer._entered),
+				new ArrayList<IBeaconSample>(zoneChanged.values()),
+				netExited(older._regionsExited, older._regionsEntered, newer._regionsExited),
+				netEntered(older._regionsEntered, newer._regionsExited, newer._regionsEntered));
+	}
+
+	/**
+	 * Indexes samples by iBeacon, keeping their order
+	 */
+	private static LinkedHashMap<IBeacon, IBeaconSample> index(List<IBeaconSample> samples){
+		LinkedHashMap<IBeacon, IBeaconSample> map = new LinkedHashMap<IBeacon, IBeaconSample>();
+		for(int i=0;i<samples.size();i++)
+			map.put(samples.get(i).getIBeacon(), samples.get(i));
+		return map;
+	}
+
+	/**
+	 * Regions left over two deltas: a region entered in the first and left in the second was never left
+	 */
+	private static <T> List<T> netExited(List<T> olderExited, List<T> olderEntered, List<T> newerExited){
+		LinkedHashSet<T> exited = new LinkedHashSet<T>(olderExited);
+		for(int i=0;i<newerExited.size();i++){
+			T t = newerExited.get(i);
+			if(!olderEntered.contains(t))
+				exited.add(t);
+		}
+		return new ArrayList<T>(exited);
+	}
+
+	/**
+	 * Regions entered over two deltas: a region entered in the first and left in the second was never entered
+	 */
+	private static <T> List<T> netEntered(List<T> olderEntered, List<T> newerExited, List<T> newerEntered){
+		LinkedHashSet<T> entered = new LinkedHashSet<T>(olderEntered);
+		entered.removeAll(newerExited);
+		entered.addAll(newerEntered);
+		return new ArrayList<T>(entered);
+	}
+
+	private static <T> List<T> copy(List<T> list){
+		if(list.isEmpty())
+			return Collections.emptyList();
+		return Collections.unmodifiableList(new ArrayList<T>(list));
+	}
+
+	/**
+	 * @return when the tick was processed, in the time base of the engine {@link Clock}
+	 */
+	public long getTimestampNanos() {
+		return _timestampNanos;
+	}
+
+	/**
+	 * @return the iBeacons found in this tick
+	 */
+	public List<IBeaconSample> getAdded() {
+		return _added;
+	}
+
+	/**
+	 * @return the iBeacons already known whose estimated distance changed in this tick
+	 */
+	public List<IBeaconSample> getUpdated() {
+		return _updated;
+	}
+
+	/**
+	 * @return the iBeacons no longer seen, removed in this tick
+	 */
+	public List<IBeacon> getRemoved() {
+		return _removed;
+	}
+
+	/**
+	 * @return the iBeacons whose region has been left in this tick, reported before those entered
+	 */
+	public List<IBeacon> getExited() {
+		return _exited;
+	}
+
+	/**
+	 * @return the iBeacons whose region has been entered in this tick
+	 */
+	public List<IBeacon> getEntered() {
+		return _entered;
+	}
+
+	/**
+	 * @return the iBeacons already in view that moved to another proximity zone in this tick, with the new zone in
+	 * {@link IBeaconSample#getZone()}
+	 */
+	public List<IBeaconSample> getZoneChanged() {
+		return _zoneChanged;
+	}
+
+	/**
+	 * @return the monitored regions left in this tick, reported before those entered
+	 */
+	public List<Region> getRegionsExited() {
+		return _regionsExited;
+	}
+
+	/**
+	 * @return the monitored regions entered in this tick
+	 */
+	public List<Region> getRegionsEntered() {
+		return _regionsEntered;
+	}
+
+	/**
+	 * @return <code>true</code> if nothing changed
+	 */
+	public boolean isEmpty() {
+		return _added.isEmpty() && _updated.isEmpty() && _removed.isEmpty() && _exited.isEmpty() && _entered.isEmpty()
+				&& _zoneChanged.isEmpty() && _regionsExited.isEmpty() && _regionsEntered.isEmpty();
+	}
+
+	@Override
+	public String toString() {
+		return "added:" + _added.size() + " updated:" + _updated.size() + " removed:" + _removed.size()
+				+ " exited:" + _exited.size() + " entered:" + _entered.size()
+				+ " zoneChanged:" + _zoneChanged.size() + " regionsExited:" + _regionsExited.size()
+				+ " regionsEntered:" + _regionsEntered.size();
+	}
+}
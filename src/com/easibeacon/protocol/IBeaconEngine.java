@@ -0,0 +1,1557 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.easibeacon.protocol;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Platform independent iBeacon discovery engine.
+ * Advertisements are received from a {@link ScanSource}, and time and delayed tasks come from an injectable
+ * {@link Clock} and {@link Scheduler}, so the engine runs on any JVM. {@link IBeaconProtocol} is the Android front end.
+ * 
+ * @author inakivazquez
+ *
+ */
+public class IBeaconEngine {
+	/**
+	 * The BLE advertisement prefix length, when the flags come first
+	 */
+	public static final int ADV_PREFIX_LENGTH = 9;
+	
+	/**
+	 * UUID length
+	 */	
+	public static final int ADV_UUID_LENGTH = 16;
+	
+	/**
+	 * Weight of a new RSSI sample in the default filter
+	 */		
+	public static final double DEFAULT_EWMA_ALPHA = 0.25;
+
+	/**
+	 * Default time after which an iBeacon not seen anymore is removed, in milliseconds
+	 */		
+	public static final long DEFAULT_EXPIRY_TIMEOUT = 10000;
+
+	/**
+	 * Resolution of the expiry of iBeacons, in milliseconds
+	 */		
+	public static final long EXPIRY_TICK = 500;
+
+	/**
+	 * Default number of canonical iBeacon identities kept
+	 */		
+	public static final int DEFAULT_POOL_CAPACITY = 1024;
+
+	/**
+	 * The prefix for identifying easiBeacons
+	 */	
+	public static final String EASIBEACON_IDPREFIX = "easiBeacon_";
+	
+	/**
+	 * State of the search process to notify the listener: started
+	 */	
+	public static final int SEARCH_STARTED = 1;
+
+	/**
+	 * State of the search process to notify the listener: no iBeacons found
+	 */	
+	public static final int SEARCH_END_EMPTY = 2;
+	
+	/**
+	 * State of the search process to notify the listener: at least one iBeacon found
+	 */		
+	public static final int SEARCH_END_SUCCESS = 3;
+	
+	/**
+	 * Source of the advertisements
+	 */	
+	private final ScanSource _scanSource;
+
+	/**
+	 * Time source
+	 */	
+	private final Clock _clock;
+
+	/**
+	 * Runs the scanning timeout
+	 */	
+	private final Scheduler _scheduler;
+
+	/**
+	 * Reference to a listener to send iBeacon events
+	 */	
+	private volatile IBeaconListener _listener;
+
+	/**
+	 * Delivers the deltas to <code>_listener</code> as separate calls, <code>null</code> if no listener
+	 */
+	private IBeaconListenerAdapter _listenerAdapter;
+
+	/**
+	 * Reference to a listener to send the grouped iBeacon events
+	 */
+	private volatile IBeaconBatchListener _batchListener;
+
+	/**
+	 * Subscribers receiving the deltas asynchronously
+	 */
+	private final CopyOnWriteArrayList<IBeaconSubscription> _subscriptions = new CopyOnWriteArrayList<IBeaconSubscription>();
+
+	/**
+	 * Filter of the advertisements, <code>null</code> to accept every iBeacon
+	 */	
+	private volatile ScanFilter _scanFilter = null;
+
+	/**
+	 * Identities accepted during the scan, <code>null</code> to accept every iBeacon
+	 */	
+	private volatile IBeaconAllowList _allowList = null;
+
+	/**
+	 * <code>true</code> if currently in a scanning process, including the rest between scan windows.
+	 * Only changed under the lock, where the window tasks check it before opening a window or scheduling.
+	 */	
+	private volatile boolean _scanning;
+
+	/**
+	 * <code>true</code> while a scan window is open and the source is reporting advertisements
+	 */	
+	private volatile boolean _windowOpen;
+
+	/**
+	 * Duty cycles for the foreground and the background
+	 */	
+	private volatile ScanDutyCycle _foregroundCycle = ScanDutyCycle.FOREGROUND;
+
+	private volatile ScanDutyCycle _backgroundCycle = ScanDutyCycle.BACKGROUND;
+
+	private volatile boolean _backgroundMode = false;
+
+	/**
+	 * Adapts the rest between windows to the churn, <code>null</code> to follow the duty cycle as is
+	 */	
+	private AdaptiveDutyCycleController _adaptiveController = null;
+
+	/**
+	 * Time spent in scan windows before the current one, in nanoseconds.
+	 * Expiry counts only this time, so the iBeacons do not expire while the radio rests.
+	 */	
+	private long _scanTime;
+
+	/**
+	 * When the current scan window was opened
+	 */	
+	private long _windowStart;
+
+	/**
+	 * Reference to the previous nearest iBeacon, to identify if region has changed
+	 */	
+	private IBeacon _previousNearestIBeacon = null;
+
+	/**
+	 * Decides the region with hysteresis, <code>null</code> to follow the nearest iBeacon immediately
+	 */	
+	private RegionStateMachine _regionStateMachine = null;
+
+	/**
+	 * iBeacons found, ordered by proximity
+	 */	
+	private final ProximityIndex _proximityIndex = new ProximityIndex();
+	
+	/**
+	 * Index of the iBeacons found by identity, for constant time lookups on every packet
+	 */	
+	private final IBeaconRegistry _registry = new IBeaconRegistry();
+	
+	/**
+	 * Prototype of the filter smoothing the RSSI of every iBeacon
+	 */
+	private RssiFilter _rssiFilter = new EwmaRssiFilter(DEFAULT_EWMA_ALPHA);
+	
+	/**
+	 * Time after which an iBeacon not seen anymore is removed, in milliseconds, 0 to keep it until the next scan
+	 */	
+	private long _expiryTimeout = DEFAULT_EXPIRY_TIMEOUT;
+
+	/**
+	 * Expires the iBeacons not seen for <code>_expiryTimeout</code>
+	 */	
+	private final ExpiryWheel _expiryWheel = new ExpiryWheel(64, EXPIRY_TICK);
+
+	/**
+	 * Entries expired in the last tick, reused between ticks
+	 */	
+	private final ArrayList<IBeaconEntry> _expired = new ArrayList<IBeaconEntry>();
+	
+	/**
+	 * Guards the registry and the proximity order, updated from the scan and the scheduler threads
+	 */	
+	private final Object _lock = new Object();
+	
+	/**
+	 * Canonical instances of the identities seen, <code>null</code> to create a new instance on every discovery
+	 */
+	private volatile IBeaconPool _identityPool;
+	
+	/**
+	 * Hands advertisements off to a processing thread, <code>null</code> to process them on the scan thread.
+	 * Only swapped in when the source starts, the one in use until then is <code>_activeCallback</code>.
+	 */
+	private volatile BufferedScanCallback _bufferedCallback = null;
+
+	/**
+	 * The buffered callback the source is reporting to, <code>null</code> if none
+	 */
+	private volatile BufferedScanCallback _activeCallback = null;
+	
+	/**
+	 * Proximity order last copied for the readers, safely published
+	 */
+	private volatile Snapshot _snapshot = null;
+	
+	/**
+	 * Precomputed distances per TX power and RSSI
+	 */
+	private final DistanceTable _distanceTable = new DistanceTable();
+	
+	/**
+	 * Reusable view over the last advertisement received, to avoid allocations per packet
+	 */
+	private final IBeaconAdvertisement _advertisement = new IBeaconAdvertisement();
+	
+	/**
+	 * Changes of the current processing tick, published together as one {@link IBeaconDelta}
+	 */
+	private final ArrayList<IBeaconEntry> _added = new ArrayList<IBeaconEntry>();
+	
+	private final ArrayList<IBeaconEntry> _updated = new ArrayList<IBeaconEntry>();
+	
+	private final ArrayList<IBeacon> _removed = new ArrayList<IBeacon>();
+	
+	private final ArrayList<IBeacon> _exited = new ArrayList<IBeacon>();
+	
+	private final ArrayList<IBeacon> _entered = new ArrayList<IBeacon>();
+
+	private final ArrayList<IBeaconEntry> _zoneChanged = new ArrayList<IBeaconEntry>();
+	
+	/**
+	 * Sequence of the current processing tick, so that an iBeacon is reported as updated only once per tick
+	 */
+	private int _tick = 0;
+
+	/**
+	 * Monitored regions, tiered by UUID, major and minor
+	 */
+	private final RegionIndex _regionIndex = new RegionIndex();
+
+	private final ArrayList<Region> _regionsExited = new ArrayList<Region>();
+
+	private final ArrayList<Region> _regionsEntered = new ArrayList<Region>();
+
+	private volatile RegionListener _regionListener;
+
+	/**
+	 * Boundaries of the proximity zones
+	 */
+	private volatile ProximityZones _zones = ProximityZones.DEFAULT;
+
+	private volatile ProximityZoneListener _zoneListener;
+
+	/**
+	 * Estimates the position from the anchors in view, <code>null</code> if not positioning
+	 */
+	private PositionEstimator _positionEstimator = null;
+
+	private PositionListener _positionListener;
+
+	private long _positionIntervalNanos;
+
+	private long _lastPosition;
+
+	/**
+	 * <code>true</code> if an anchor changed since the last estimate
+	 */
+	private boolean _positionDirty;
+	
+	/**
+	 * Deltas and positions published under the lock and waiting to be delivered outside it, in order
+	 */
+	private final ArrayList<Object> _pending = new ArrayList<Object>();
+	
+	/**
+	 * Deltas and positions being delivered, only used by the dispatching thread
+	 */
+	private final ArrayList<Object> _dispatched = new ArrayList<Object>();
+	
+	/**
+	 * <code>true</code> while a thread delivers the pending deltas
+	 */
+	private boolean _dispatching;
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param scanSource the source of the advertisements
+	 * @param clock the time source
+	 * @param scheduler the scheduler for delayed tasks
+	 */
+	public IBeaconEngine(ScanSource scanSource, Clock clock, Scheduler scheduler){
+		_scanSource = scanSource;
+		_clock = clock;
+		_scheduler = scheduler;
+		_advertisement.addDecoder(new IBeaconDecoder());
+		setIdentityPool(new IBeaconPool(DEFAULT_POOL_CAPACITY));
+	}
+	
+	/**
+	 * Returns the listener configured previously if any
+	 * 
+	 * @return the listener
+	 */
+	public IBeaconListener getListener() {
+		return _listener;
+	}
+
+	/**
+	 * Configures the listener that will receive events involving iBeacon regions
+	 * @param l the listener to configure
+	 */
+	public void setListener(IBeaconListener l) {
+		synchronized(_lock){
+			this._listener = l;
+			this._listenerAdapter = l == null ? null : new IBeaconListenerAdapter(l);
+		}
+	}
+	
+	/**
+	 * Returns the batch listener configured previously if any
+	 * 
+	 * @return the batch listener
+	 */
+	public IBeaconBatchListener getBatchListener() {
+		return _batchListener;
+	}
+
+	/**
+	 * Configures a listener receiving the iBeacon events grouped, one {@link IBeaconDelta} per processing tick.
+	 * Works alongside the listener set with {@link #setListener(IBeaconListener)}.
+	 * @param l the batch listener to configure, <code>null</code> to remove it
+	 */
+	public void setBatchListener(IBeaconBatchListener l) {
+		synchronized(_lock){
+			this._batchListener = l;
+		}
+	}
+	
+	/**
+	 * @return the clock used by this engine
+	 */
+	public Clock getClock() {
+		return _clock;
+	}
+
+	/**
+	 * Configures the scan windows and the rest between them
+	 * 
+	 * @param foreground the duty cycle while the app is in the foreground
+	 * @param background the duty cycle while the app is in the background
+	 */
+	public void setDutyCycles(ScanDutyCycle foreground, ScanDutyCycle background) {
+		_foregroundCycle = foreground;
+		_backgroundCycle = background;
+	}
+
+	/**
+	 * Switches between the foreground and the background duty cycles, from the next scan window on
+	 * 
+	 * @param background <code>true</code> if the app is in the background
+	 */
+	public void setBackgroundMode(boolean background) {
+		synchronized(_lock){
+			if(_backgroundMode != background && _adaptiveController != null)
+				_adaptiveController.reset();
+			_backgroundMode = background;
+		}
+	}
+
+	/**
+	 * Configures a controller adapting the rest between scan windows to the changes observed
+	 * 
+	 * @param controller the controller, <code>null</code> to follow the duty cycle as is
+	 */
+	public void setAdaptiveController(AdaptiveDutyCycleController controller) {
+		synchronized(_lock){
+			_adaptiveController = controller;
+		}
+	}
+
+	/**
+	 * @return the duty cycle currently in use
+	 */
+	public ScanDutyCycle getDutyCycle() {
+		return _backgroundMode ? _backgroundCycle : _foregroundCycle;
+	}
+
+	/**
+	 * Configures how long an iBeacon is kept after it was last seen during a scan.
+	 * Only the time spent inside scan windows counts, the rest between windows does not.
+	 * Expired iBeacons are removed from the proximity order, which may raise an exit region event.
+	 * 
+	 * @param millis the timeout in milliseconds of scanning, 0 to keep the iBeacons until the next scan
+	 */
+	public void setExpiryTimeout(long millis) {
+		synchronized(_lock){
+			_expiryTimeout = millis;
+		}
+	}
+
+	/**
+	 * Configures how the RSSI of every iBeacon is smoothed before estimating its distance.
+	 * Each iBeacon discovered from now on gets its own copy of the filter.
+	 * 
+	 * @param filter the prototype filter, such as {@link EwmaRssiFilter}, {@link KalmanRssiFilter} or {@link MedianRssiFilter}
+	 */
+	public void setRssiFilter(RssiFilter filter){
+		synchronized(_lock){
+			_rssiFilter = filter;
+		}
+	}
+	
+	/**
+	 * Sets the boundaries of the proximity zones. The iBeacons in view are reclassified as their distance changes.
+	 * 
+	 * @param zones the zones, <code>null</code> for {@link ProximityZones#DEFAULT}
+	 */
+	public void setProximityZones(ProximityZones zones){
+		_zones = zones == null ? ProximityZones.DEFAULT : zones;
+	}
+	
+	public ProximityZones getProximityZones(){
+		return _zones;
+	}
+	
+	/**
+	 * Sets the listener for the proximity zone changes, called with the rest of the delta listeners
+	 */
+	public void setProximityZoneListener(ProximityZoneListener l){
+		_zoneListener = l;
+	}
+	
+	/**
+	 * Configures a position estimator, fed with every sample of the iBeacons of its {@link FloorMap}. The position
+	 * is estimated at most once per interval, and only if an anchor changed since the last estimate.
+	 * 
+	 * @param estimator the estimator, such as {@link TrilaterationEstimator}, <code>null</code> to stop positioning
+	 * @param intervalMillis the minimum time between two estimates
+	 * @param listener the listener receiving the positions
+	 */
+	public void setPositionEstimator(PositionEstimator estimator, long intervalMillis, PositionListener listener){
+		synchronized(_lock){
+			_positionEstimator = estimator;
+			_positionIntervalNanos = intervalMillis * 1000000L;
+			_positionListener = listener;
+			_lastPosition = _clock.nanoTime() - _positionIntervalNanos;
+			// Resolve and feed the iBeacons already in view
+			for(int i=0;i<_proximityIndex.size();i++){
+				IBeaconEntry e = _proximityIndex.entryAt(i);
+				e.anchor = estimator == null ? -1 : estimator.getFloorMap().indexOf(e.uuidMsb, e.uuidLsb, e.majorMinor);
+				if(e.anchor >= 0){
+					IBeacon ibeacon = e.ibeacon;
+					estimator.update(e.anchor, ibeacon.getProximityCm(), ibeacon.getRssi(), ibeacon.getPowerValue(), e.lastSeen);
+					_positionDirty = true;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Configures the pool of canonical iBeacon instances. With a pool, every sighting of the same identity resolves
+	 * to the same instance, even across scans, so references can be compared directly. The pool is accessed under
+	 * the lock of this engine only, so it cannot be shared: the previous pool is released and may be configured
+	 * on another engine.
+	 * 
+	 * @param pool the pool, <code>null</code> to create a new instance on every discovery
+	 * @throws IllegalStateException if the pool is configured on another engine
+	 */
+	public void setIdentityPool(IBeaconPool pool){
+		synchronized(_lock){
+			if(pool != null)
+				pool.claim(this);
+			if(_identityPool != null && _identityPool != pool)
+				_identityPool.release(this);
+			_identityPool = pool;
+		}
+	}
+	
+	/**
+	 * @return the pool of canonical instances, to read its statistics, or <code>null</code> if not configured
+	 */
+	public IBeaconPool getIdentityPool(){
+		return _identityPool;
+	}
+	
+	/**
+	 * Configures a ring buffer between the scan thread and a dedicated processing thread, so that the scan
+	 * callback only copies the advertisement. Takes effect on the next scan window, the buffer in use until then
+	 * keeps receiving and delivering the advertisements.
+	 * 
+	 * @param capacity the number of advertisements buffered, 0 to process them on the scan thread
+	 * @param overflowPolicy what to do when full, one of the <code>ScanRingBuffer.OVERFLOW_*</code> constants
+	 */
+	public void setScanBuffer(int capacity, int overflowPolicy){
+		if(capacity <= 0)
+			_bufferedCallback = null;
+		else
+			_bufferedCallback = new BufferedScanCallback(new ScanRingBuffer(capacity, overflowPolicy), _scanCallback, BufferedScanCallback.DEFAULT_BATCH_SIZE);
+	}
+	
+	/**
+	 * @return the ring buffer configured, in use from the next scan window, to read its drop counters, or
+	 * <code>null</code> if not configured
+	 */
+	public ScanRingBuffer getScanBuffer(){
+		BufferedScanCallback callback = _bufferedCallback;
+		return callback == null ? null : callback.getBuffer();
+	}
+	
+	/**
+	 * Obtains the list of  discovered iBeacons ordered by estimated proximity.
+	 * Safe to call from any thread, it does not wait for the processing unless the order changed since the last call.
+	 * Their proximity, RSSI and zone keep being updated, see {@link #getSamplesByProximity()} for values consistent
+	 * with the order.
+	 * 
+	 * @return the {@link java.util.ArrayList} of iBeacons
+	 */
+	public ArrayList<IBeacon> getIBeaconsByProximity(){
+		IBeacon[] ibeacons = snapshot();
+		ArrayList<IBeacon> list = new ArrayList<IBeacon>(ibeacons.length);
+		for(int i=0;i<ibeacons.length;i++)
+			list.add(ibeacons[i]);
+		return list;
+	}
+	
+	/**
+	 * Obtains the nearest discovered iBeacons ordered by estimated proximity. Only the first <code>k</code> are
+	 * copied, from the order last published if still current or else from the index, under the lock.
+	 * 
+	 * @param k maximum number of iBeacons to return
+	 * @return the {@link java.util.ArrayList} with at most <code>k</code> iBeacons, nearest first
+	 */
+	public ArrayList<IBeacon> getNearest(int k){
+		k = Math.max(k, 0);
+		Snapshot snapshot = _snapshot;
+		if(snapshot != null && snapshot.version == _proximityIndex.getVersion()){
+			int n = Math.min(k, snapshot.ibeacons.length);
+			ArrayList<IBeacon> list = new ArrayList<IBeacon>(n);
+			for(int i=0;i<n;i++)
+				list.add(snapshot.ibeacons[i]);
+			return list;
+		}
+		synchronized(_lock){
+			int n = Math.min(k, _proximityIndex.size());
+			ArrayList<IBeacon> list = new ArrayList<IBeacon>(n);
+			for(int i=0;i<n;i++)
+				list.add(_proximityIndex.entryAt(i).ibeacon);
+			return list;
+		}
+	}
+	
+	/**
+	 * Obtains the measures of the discovered iBeacons ordered by estimated proximity, all taken at the same time
+	 * 
+	 * @return the {@link java.util.ArrayList} of samples, nearest first
+	 */
+	public ArrayList<IBeaconSample> getSamplesByProximity(){
+		return getNearestSamples(Integer.MAX_VALUE);
+	}
+	
+	/**
+	 * Obtains the measures of the nearest discovered iBeacons, all taken at the same time under the lock.
+	 * Only the first <code>k</code> are copied.
+	 * 
+	 * @param k maximum number of iBeacons to return
+	 * @return the {@link java.util.ArrayList} with at most <code>k</code> samples, nearest first
+	 */
+	public ArrayList<IBeaconSample> getNearestSamples(int k){
+		synchronized(_lock){
+			int n = Math.min(Math.max(k, 0), _proximityIndex.size());
+			ArrayList<IBeaconSample> list = new ArrayList<IBeaconSample>(n);
+			for(int i=0;i<n;i++)
+				list.add(sample(_proximityIndex.entryAt(i)));
+			return list;
+		}
+	}
+	
+	/**
+	 * Gives the proximity order published for the readers, copying it again only if it changed
+	 * 
+	 * @return the iBeacons, nearest first, not to be modified
+	 */
+	private IBeacon[] snapshot(){
+		Snapshot snapshot = _snapshot;
+		if(snapshot == null || snapshot.version != _proximityIndex.getVersion()){
+			synchronized(_lock){
+				snapshot = _snapshot;
+				int version = _proximityIndex.getVersion();
+				if(snapshot == null || snapshot.version != version){
+					snapshot = new Snapshot(version, _proximityIndex.toArray());
+					_snapshot = snapshot;
+				}
+			}
+		}
+		return snapshot.ibeacons;
+	}
+	
+	/**
+	 * Copies the current measures of an iBeacon
+	 */
+	private static IBeaconSample sample(IBeaconEntry entry){
+		IBeacon ibeacon = entry.ibeacon;
+		return new IBeaconSample(ibeacon, ibeacon.getProximityCm(), ibeacon.getRssi(), ibeacon.getZone(), entry.lastSeen);
+	}
+	
+	private static List<IBeaconSample> samples(List<IBeaconEntry> entries){
+		ArrayList<IBeaconSample> samples = new ArrayList<IBeaconSample>(entries.size());
+		for(int i=0;i<entries.size();i++)
+			samples.add(sample(entries.get(i)));
+		return samples;
+	}
+	
+	/**
+	 * Removes information about previous nearest beacon in order to "forget" the current region and detect it again.
+	 * Used mainly for administration purposes.
+	 */
+	public void reset(){
+		synchronized(_lock){
+			_previousNearestIBeacon = null;
+			if(_regionStateMachine != null)
+				_regionStateMachine.reset();
+		}
+	}
+	
+	/**
+	 * Configures a state machine deciding the region with dwell times and margins, instead of entering the region
+	 * of the nearest iBeacon as soon as it changes. The state machine is evaluated on every advertisement, once per
+	 * batch, and at every expiry check, with its dwell times measured in scanning time.
+	 * 
+	 * @param stateMachine the state machine, <code>null</code> to follow the nearest iBeacon immediately
+	 */
+	public void setRegionStateMachine(RegionStateMachine stateMachine){
+		synchronized(_lock){
+			_regionStateMachine = stateMachine;
+		}
+	}
+	
+	/**
+	 * Starts monitoring a region. A region is entered when the first of its iBeacons comes into view and left when
+	 * the last one expires, independently of the nearest iBeacon. Any number of regions can be monitored, each
+	 * sighting is resolved with one lookup per tier. If iBeacons of the region are already in view, it is entered
+	 * right away.
+	 * 
+	 * @param region the region
+	 * @return <code>false</code> if the region was already monitored
+	 */
+	public boolean addRegion(Region region){
+		synchronized(_lock){
+			RegionIndex.Node node = _regionIndex.add(region);
+			if(node == null)
+				return false;
+			for(int i=0;i<_proximityIndex.size();i++){
+				IBeaconEntry e = _proximityIndex.entryAt(i);
+				if(!region.matches(e.ibeacon))
+					continue;
+				if(node.level == 0)
+					e.uuidRegion = node;
+				else if(node.level == 1)
+					e.majorRegion = node;
+				else
+					e.minorRegion = node;
+				node.inside++;
+			}
+			if(node.inside > 0){
+				_regionsEntered.add(region);
+				publishDelta();
+			}
+		}
+		dispatch();
+		return true;
+	}
+	
+	/**
+	 * Stops monitoring a region, without reporting it as left
+	 * 
+	 * @param region the region
+	 * @return <code>false</code> if the region was not monitored
+	 */
+	public boolean removeRegion(Region region){
+		synchronized(_lock){
+			return _regionIndex.remove(region) != null;
+		}
+	}
+	
+	/**
+	 * @return a new list with the monitored regions
+	 */
+	public ArrayList<Region> getRegions(){
+		ArrayList<Region> regions = new ArrayList<Region>();
+		synchronized(_lock){
+			_regionIndex.getRegions(regions);
+		}
+		return regions;
+	}
+	
+	/**
+	 * @return <code>true</code> if the region is monitored and any of its iBeacons is in view
+	 */
+	public boolean isInside(Region region){
+		synchronized(_lock){
+			RegionIndex.Node node = _regionIndex.find(region);
+			return node != null && node.inside > 0;
+		}
+	}
+	
+	/**
+	 * Sets the listener for the monitored regions, called with the rest of the delta listeners
+	 */
+	public void setRegionListener(RegionListener l){
+		_regionListener = l;
+	}
+	
+	public RegionListener getRegionListener(){
+		return _regionListener;
+	}
+	
+	/**
+	 * Informs if the system is currently scanning for iBeacons
+	 * 
+	 * @return <code>true</code> if currently scanning iBeacons. <code>false</code> otherwise.
+	 */
+	public boolean isScanning(){
+		return _scanning;
+	}
+	
+	/**
+	 * Sets a UUID to filter ibeacons based on that UUID
+	 * @param uuid the UUID to filter ibeacon advertisements, <code>null</code> to accept every iBeacon
+	 */
+	public void setScanUUID(byte[] uuid){
+		_scanFilter = uuid == null ? null : new ScanFilter.Builder().addUuid(uuid).build();
+	}
+	
+	/**
+	 * Replaces the filter of the advertisements. Can be called while scanning, the new filter applies from the
+	 * next advertisement on.
+	 * @param filter the filter, <code>null</code> to accept every iBeacon
+	 */
+	public void setScanFilter(ScanFilter filter){
+		_scanFilter = filter;
+	}
+	
+	/**
+	 * @return the filter of the advertisements, <code>null</code> if every iBeacon is accepted
+	 */
+	public ScanFilter getScanFilter(){
+		return _scanFilter;
+	}
+	
+	/**
+	 * Subscribes a listener to the deltas, delivered on its own executor through a bounded queue.
+	 * Any number of subscribers can be added, and none of them is called from the scanning thread.
+	 * With <code>OVERFLOW_BLOCK</code> a full queue holds the thread delivering the deltas, usually the scan thread,
+	 * until the subscriber catches up. The lock of the engine is not held while waiting, and stopping the scan
+	 * releases it, dropping the delta. Its executor must not share a thread with the scan control.
+	 * 
+	 * @param listener the listener receiving the deltas
+	 * @param executor runs the deliveries, one at a time
+	 * @param capacity the number of deltas the queue can hold
+	 * @param overflowPolicy what to do when the queue is full, one of the <code>OVERFLOW_</code> constants of
+	 * {@link IBeaconSubscription}
+	 * @return the subscription, to read its lag metrics or cancel it
+	 */
+	public IBeaconSubscription subscribe(IBeaconBatchListener listener, Executor executor, int capacity, int overflowPolicy){
+		IBeaconSubscription subscription = new IBeaconSubscription(this, listener, executor, capacity, overflowPolicy);
+		_subscriptions.add(subscription);
+		return subscription;
+	}
+	
+	/**
+	 * Removes a subscription, called when it is cancelled
+	 */
+	void unsubscribe(IBeaconSubscription subscription){
+		_subscriptions.remove(subscription);
+	}
+	
+	/**
+	 * Adds a decoder for another beacon format, such as {@link EddystoneDecoder} or {@link AltBeaconDecoder}.
+	 * Only iBeacon frames are decoded by default. The beacons found are reported as any other iBeacon, see
+	 * {@link IBeacon#getFrameType()}.
+	 * @param decoder the decoder to add
+	 */
+	public void addFrameDecoder(FrameDecoder decoder){
+		synchronized(_lock){
+			_advertisement.addDecoder(decoder);
+		}
+	}
+	
+	/**
+	 * Removes a decoder, including the default iBeacon decoder
+	 * @param decoder the decoder to remove
+	 */
+	public void removeFrameDecoder(FrameDecoder decoder){
+		synchronized(_lock){
+			_advertisement.removeDecoder(decoder);
+		}
+	}
+	
+	/**
+	 * Replaces the list of accepted identities. Can be called while scanning, the new list applies from the
+	 * next advertisement on. Works together with the scan filter, an iBeacon must pass both.
+	 * @param allowList the accepted identities, <code>null</code> to accept every iBeacon
+	 */
+	public void setAllowList(IBeaconAllowList allowList){
+		_allowList = allowList;
+	}
+	
+	/**
+	 * @return the list of accepted identities, <code>null</code> if every iBeacon is accepted
+	 */
+	public IBeaconAllowList getAllowList(){
+		return _allowList;
+	}
+	
+	/**
+	 * Loads a list of accepted identities in the background and swaps it in once loaded. The current list
+	 * keeps filtering the advertisements in the meantime, and stays in place if the load fails.
+	 * @param identities the identity file, see {@link IBeaconAllowList#write(File, long[], long[], int[], int)}
+	 * @param bloomFilter the file of the prebuilt Bloom filter, see {@link IBeaconAllowList#writeBloomFilter(File, File)},
+	 * <code>null</code> to build it while loading. A filter built from other identities is built again.
+	 * @param executor runs the load
+	 * @return the pending load, giving the new list or the reason of the failure
+	 */
+	public Future<IBeaconAllowList> loadAllowList(final File identities, final File bloomFilter, Executor executor){
+		FutureTask<IBeaconAllowList> task = new FutureTask<IBeaconAllowList>(new Callable<IBeaconAllowList>() {
+			@Override
+			public IBeaconAllowList call() throws Exception {
+				IBeaconAllowList allowList = IBeaconAllowList.load(identities, bloomFilter);
+				_allowList = allowList;
+				return allowList;
+			}
+		});
+		executor.execute(task);
+		return task;
+	}
+	
+	/**
+	 * Callback for processing advertisements, to identify iBeacons during the scanning process.
+	 */
+	private final ScanSource.BatchCallback _scanCallback = new ScanSource.BatchCallback() {
+		@Override
+		public void onAdvertisement(String macAddress, String name, int rssi, byte[] scanRecord, long timestampNanos) {
+			processAdvertisement(macAddress, name, rssi, scanRecord, timestampNanos);
+		}
+
+		@Override
+		public void onAdvertisements(String[] macAddresses, String[] names, int[] rssis, byte[][] scanRecords,
+				long[] timestampsNanos, int offset, int count) {
+			ingest(macAddresses, names, rssis, scanRecords, timestampsNanos, offset, count);
+		}
+	};
+	
+	/**
+	 * Processes a single advertisement, as if received from the {@link ScanSource}
+	 * 
+	 * @param macAddress the MAC address of the advertiser
+	 * @param name the advertised device name, <code>null</code> if unknown
+	 * @param rssi the measured RSSI
+	 * @param scanRecord the raw advertisement data
+	 * @param timestampNanos reception time
+	 */
+	public void processAdvertisement(String macAddress, String name, int rssi, byte[] scanRecord, long timestampNanos){
+		synchronized(_lock){
+			process(macAddress, name, rssi, scanRecord, timestampNanos);
+			if(_regionStateMachine != null)
+				notifyListener();
+			publishDelta();
+		}
+		dispatch();
+	}
+	
+	/**
+	 * Processes a batch of advertisements, as received by a gateway. All the updates are applied before the
+	 * iBeacons are ordered again, once, and the whole batch is reported as a single {@link IBeaconDelta}.
+	 * 
+	 * @param macAddresses the MAC addresses of the advertisers
+	 * @param names the advertised device names, <code>null</code> if none is known
+	 * @param rssis the measured RSSIs
+	 * @param scanRecords the raw advertisement data
+	 * @param timestampsNanos reception times
+	 * @param offset the index of the first advertisement in the arrays
+	 * @param count the number of advertisements
+	 */
+	public void ingest(String[] macAddresses, String[] names, int[] rssis, byte[][] scanRecords, long[] timestampsNanos, int offset, int count){
+		if(offset < 0 || count < 0 || offset + count > macAddresses.length || offset + count > rssis.length
+				|| offset + count > scanRecords.length || offset + count > timestampsNanos.length
+				|| (names != null && offset + count > names.length))
+			throw new IndexOutOfBoundsException("Invalid batch: offset " + offset + ", count " + count);
+		synchronized(_lock){
+			_proximityIndex.beginBatch();
+			try {
+				for(int i=offset;i<offset+count;i++)
+					process(macAddresses[i], names == null ? null : names[i], rssis[i], scanRecords[i], timestampsNanos[i]);
+			} finally {
+				_proximityIndex.endBatch();
+			}
+			if(_regionStateMachine != null)
+				notifyListener();
+			publishDelta();
+		}
+		dispatch();
+	}
+	
+	private void process(String macAddress, String name, int rssi, byte[] scanRecord, long timestampNanos){
+    	if(!parseAdvertisementData(scanRecord))
+    		return;
+    	if(_advertisement.getFrameType() == IBeacon.FRAME_EDDYSTONE_TLM){
+    		updateTelemetry(Utils.macToLong(macAddress), timestampNanos);
+    		return;
+    	}
+
+    	long uuidMsb = _advertisement.getUuidMostSignificantBits();
+    	long uuidLsb = _advertisement.getUuidLeastSignificantBits();
+    	int majorMinor = _advertisement.getMajorMinor();
+    	long mac = Utils.macToLong(macAddress);
+
+    	// If already discovered, then just refresh the RSSI of the existing instance and return
+    	IBeaconEntry entry = _registry.find(uuidMsb, uuidLsb, majorMinor, mac);
+    	if(entry != null){
+    		updateProximity(entry, _advertisement.getPowerValue(), rssi, timestampNanos);
+    		if(_advertisement.hasUrl() && !_advertisement.urlEquals(entry.url)){
+    			entry.url = _advertisement.copyUrl();
+    			entry.ibeacon.setUrl(_advertisement.getUrl());
+    		}
+    		seen(entry, timestampNanos);
+    		return;
+    	}
+    	
+    	// First time seen in this scan, reuse the canonical instance if the identity is pooled
+    	IBeaconPool pool = _identityPool;
+    	int poolSlot = pool == null ? -1 : pool.lookup(uuidMsb, uuidLsb, majorMinor, mac);
+    	IBeacon newBeacon = poolSlot < 0 ? null : pool.valueAt(poolSlot);
+    	if(newBeacon == null){
+    		// Only now the iBeacon instance is created
+	    	newBeacon = _advertisement.toIBeacon();
+	    	newBeacon.setMacAddress(macAddress);
+	    	if(pool != null)
+	    		poolSlot = pool.put(uuidMsb, uuidLsb, majorMinor, mac, newBeacon);
+    	}else{
+    		newBeacon.setPowerValue(_advertisement.getPowerValue());
+    		newBeacon.setFrameType(_advertisement.getFrameType());
+    		newBeacon.setUrl(_advertisement.getUrl());
+    	}
+    	
+		newBeacon.setEasiBeacon(false);
+    	if(name == null)
+    		name = _scanSource.getName(macAddress);
+    	if(name != null){
+	    	if(name.startsWith(EASIBEACON_IDPREFIX)){
+	    		newBeacon.setEasiBeacon(true);
+	    		String version = name.substring(EASIBEACON_IDPREFIX.length());
+	    		newBeacon.setVersionModel(version);
+	    		if(newBeacon.getVersion() == 1){
+	    			// Version 1 is always connectable
+	    			newBeacon.setConnectable(true);
+	    		}else if(newBeacon.getVersion() == 2){
+	    			newBeacon.setConnectable(getConnectable());
+	    			if(!newBeacon.isConnectable())
+	    				newBeacon.setEasiBeacon(false); //If not connectable we will report it as unknown 
+	    		}		    		
+	    	}
+    	}
+    	
+    	newBeacon.setZone(IBeacon.ZONE_UNKNOWN);
+    	entry = new IBeaconEntry(newBeacon, uuidMsb, uuidLsb, majorMinor, mac);
+    	entry.rssiFilter = _rssiFilter.copy();
+    	entry.url = _advertisement.copyUrl();
+    	entry.poolSlot = poolSlot;
+    	if(_positionEstimator != null)
+    		entry.anchor = _positionEstimator.getFloorMap().indexOf(uuidMsb, uuidLsb, majorMinor);
+    	updateProximity(entry, newBeacon.getPowerValue(), rssi, timestampNanos);
+    	_registry.add(entry);
+    	_proximityIndex.add(entry);
+    	if(_regionIndex.size() > 0)
+    		enterRegions(entry);
+    	seen(entry, timestampNanos);
+    	if(_adaptiveController != null)
+    		_adaptiveController.beaconFound();
+    	// Already reported as added in this tick
+    	entry.deltaTick = _tick;
+    	_added.add(entry);
+	}
+	
+	/**
+	 * Counts a new iBeacon in the monitored regions it matches, one lookup per tier
+	 */
+	private void enterRegions(IBeaconEntry entry){
+		entry.uuidRegion = enterRegion(_regionIndex.find(0, entry.uuidMsb, entry.uuidLsb, entry.majorMinor));
+		entry.majorRegion = enterRegion(_regionIndex.find(1, entry.uuidMsb, entry.uuidLsb, entry.majorMinor));
+		entry.minorRegion = enterRegion(_regionIndex.find(2, entry.uuidMsb, entry.uuidLsb, entry.majorMinor));
+	}
+	
+	private RegionIndex.Node enterRegion(RegionIndex.Node node){
+		if(node != null && node.inside++ == 0)
+			_regionsEntered.add(node.region);
+		return node;
+	}
+	
+	/**
+	 * Discounts an expired iBeacon from the regions it was counted in
+	 */
+	private void exitRegions(IBeaconEntry entry){
+		exitRegion(entry.uuidRegion);
+		exitRegion(entry.majorRegion);
+		exitRegion(entry.minorRegion);
+		entry.uuidRegion = null;
+		entry.majorRegion = null;
+		entry.minorRegion = null;
+	}
+	
+	private void exitRegion(RegionIndex.Node node){
+		// Nodes of regions no longer monitored are left as they are
+		if(node != null && !node.removed && --node.inside == 0)
+			_regionsExited.add(node.region);
+	}
+	
+	/**
+	 * Publishes the changes of the current processing tick, if any, as one {@link IBeaconDelta}. Called with the
+	 * lock held, the delta is only queued, see {@link #dispatch()}.
+	 */
+	private void publishDelta(){
+		if(_positionDirty && _positionEstimator != null)
+			estimatePosition();
+		if(_added.isEmpty() && _updated.isEmpty() && _removed.isEmpty() && _exited.isEmpty() && _entered.isEmpty()
+				&& _zoneChanged.isEmpty() && _regionsExited.isEmpty() && _regionsEntered.isEmpty())
+			return;
+		IBeaconDelta delta = new IBeaconDelta(_clock.nanoTime(), samples(_added), samples(_updated), _removed, _exited,
+				_entered, samples(_zoneChanged), _regionsExited, _regionsEntered);
+		_added.clear();
+		_updated.clear();
+		_removed.clear();
+		_exited.clear();
+		_entered.clear();
+		_zoneChanged.clear();
+		_regionsExited.clear();
+		_regionsEntered.clear();
+		_tick++;
+		_pending.add(delta);
+	}
+	
+	/**
+	 * Delivers the deltas and positions published so far to the listeners and subscribers. Called after releasing
+	 * the lock, so that listeners can call back into the engine and a subscriber with
+	 * <code>OVERFLOW_BLOCK</code> only holds the delivering thread. One thread delivers at a time, in the order
+	 * published, taking over what other threads publish meanwhile.
+	 */
+	private void dispatch(){
+		IBeaconListenerAdapter listenerAdapter;
+		PositionListener positionListener;
+		synchronized(_lock){
+			if(_dispatching || _pending.isEmpty())
+				return;
+			_dispatching = true;
+		}
+		try {
+			for(;;){
+				synchronized(_lock){
+					if(_pending.isEmpty()){
+						_dispatching = false;
+						return;
+					}
+					_dispatched.addAll(_pending);
+					_pending.clear();
+					listenerAdapter = _listenerAdapter;
+					positionListener = _positionListener;
+				}
+				for(int i=0;i<_dispatched.size();i++){
+					Object item = _dispatched.get(i);
+					if(item instanceof Position){
+						if(positionListener != null)
+							positionListener.positionChanged((Position)item);
+					}else{
+						deliver((IBeaconDelta)item, listenerAdapter);
+					}
+				}
+				_dispatched.clear();
+			}
+		} catch(RuntimeException e) {
+			_dispatched.clear();
+			synchronized(_lock){
+				_dispatching = false;
+			}
+			throw e;
+		}
+	}
+	
+	private void deliver(IBeaconDelta delta, IBeaconListenerAdapter listenerAdapter){
+		if(listenerAdapter != null)
+			listenerAdapter.onDelta(delta);
+		RegionListener regionListener = _regionListener;
+		if(regionListener != null){
+			List<Region> regions = delta.getRegionsExited();
+			for(int i=0;i<regions.size();i++)
+				regionListener.exitRegion(regions.get(i));
+			regions = delta.getRegionsEntered();
+			for(int i=0;i<regions.size();i++)
+				regionListener.enterRegion(regions.get(i));
+		}
+		ProximityZoneListener zoneListener = _zoneListener;
+		if(zoneListener != null){
+			List<IBeaconSample> changed = delta.getZoneChanged();
+			for(int i=0;i<changed.size();i++)
+				zoneListener.zoneChanged(changed.get(i).getIBeacon(), changed.get(i).getZone());
+		}
+		IBeaconBatchListener batchListener = _batchListener;
+		if(batchListener != null)
+			batchListener.onDelta(delta);
+		for(IBeaconSubscription subscription : _subscriptions)
+			subscription.offer(delta);
+	}
+	
+	/**
+	 * Reports an iBeacon as updated in the current tick, only collected if there is a batch listener or a subscriber
+	 */
+	private void updated(IBeaconEntry entry){
+		if((_batchListener != null || !_subscriptions.isEmpty()) && entry.proximityIndex >= 0 && entry.deltaTick != _tick){
+			entry.deltaTick = _tick;
+			_updated.add(entry);
+		}
+	}
+	
+	/**
+	 * Attaches the telemetry of the wrapped TLM frame to the beacons already seen from the same device
+	 * 
+	 * @param mac the MAC address of the device
+	 * @param timestampNanos the time of the frame
+	 */
+	private void updateTelemetry(long mac, long timestampNanos){
+		if(mac < 0)
+			return;
+		for(IBeaconEntry e = _registry.findByMac(mac); e != null; e = e.macNext){
+			if(e.mac != mac)
+				continue;
+			e.ibeacon.setTelemetry(_advertisement.getBatteryVoltage(), _advertisement.getTemperature(),
+					_advertisement.getAdvertisementCount(), _advertisement.getUptime());
+			// Still broadcasting, even if the identity frames were missed
+			seen(e, timestampNanos);
+			updated(e);
+		}
+	}
+	
+	/**
+	 * Adds an RSSI sample to an entry and moves it in the proximity order if its filtered distance changed
+	 * 
+	 * @param entry the entry of the iBeacon
+	 * @param txPower RSSI of the iBeacon at 1 meter
+	 * @param rssi measured RSSI
+	 * @param timestampNanos the time of the measure
+	 */
+	private void updateProximity(IBeaconEntry entry, int txPower, int rssi, long timestampNanos){
+		if(_adaptiveController != null && entry.proximityIndex >= 0)
+			_adaptiveController.rssiSample(rssi - entry.rssiFilter.getValue());
+		int filtered = (int)Math.round(entry.rssiFilter.filter(rssi, timestampNanos));
+		entry.samples++;
+		IBeacon ibeacon = entry.ibeacon;
+		ibeacon.setRssi(filtered);
+		int distance = _distanceTable.getDistanceCm(txPower, filtered);
+		if(distance != ibeacon.getProximityCm() || ibeacon.getZone() == IBeacon.ZONE_UNKNOWN){
+			ibeacon.setProximityCm(distance);
+			// Move only this iBeacon to its new place
+			if(entry.proximityIndex >= 0){
+				_proximityIndex.update(entry);
+				updated(entry);
+			}
+			int zone = _zones.classify(ibeacon.getZone(), distance);
+			if(zone != ibeacon.getZone()){
+				ibeacon.setZone(zone);
+				zoneChanged(entry);
+			}
+		}
+		if(entry.anchor >= 0){
+			_positionEstimator.update(entry.anchor, distance, filtered, txPower, timestampNanos);
+			_positionDirty = true;
+		}
+	}
+	
+	/**
+	 * Estimates the position if an anchor changed and the interval elapsed since the last estimate
+	 */
+	private void estimatePosition(){
+		long now = _clock.nanoTime();
+		if(now - _lastPosition < _positionIntervalNanos)
+			return;
+		_positionDirty = false;
+		_lastPosition = now;
+		Position position = _positionEstimator.estimate(now);
+		if(position != null && _positionListener != null)
+			_pending.add(position);
+	}
+	
+	/**
+	 * Stops feeding an anchor to the position estimator
+	 */
+	private void removeAnchor(IBeaconEntry entry){
+		if(entry.anchor >= 0){
+			_positionEstimator.remove(entry.anchor);
+			entry.anchor = -1;
+			_positionDirty = true;
+		}
+	}
+	
+	/**
+	 * Reports an iBeacon in view as moved to another zone in the current tick, only once per tick
+	 */
+	private void zoneChanged(IBeaconEntry entry){
+		if(entry.proximityIndex >= 0 && entry.zoneTick != _tick){
+			entry.zoneTick = _tick;
+			_zoneChanged.add(entry);
+		}
+	}
+	
+	/**
+	 * Records a sighting of an entry and postpones its expiry
+	 * 
+	 * @param entry the entry of the iBeacon
+	 * @param timestampNanos the time of the sighting
+	 */
+	private void seen(IBeaconEntry entry, long timestampNanos){
+		entry.lastSeen = timestampNanos;
+		// The pool evicts the identities seen least recently, not those discovered least recently
+		IBeaconPool pool = _identityPool;
+		if(pool != null && entry.poolSlot >= 0)
+			pool.touch(entry.poolSlot, entry.ibeacon);
+		if(_expiryTimeout > 0)
+			_expiryWheel.schedule(entry, scanTime(timestampNanos) + _expiryTimeout * 1000000L);
+	}
+	
+	/**
+	 * Converts a time into the time spent scanning, which only advances while a scan window is open
+	 * 
+	 * @param nanos a time of the engine clock
+	 * @return the scanning time at that moment
+	 */
+	private long scanTime(long nanos){
+		if(!_windowOpen)
+			return _scanTime;
+		return _scanTime + Math.max(nanos - _windowStart, 0);
+	}
+	
+	/**
+	 * Removes the iBeacons not seen for the expiry timeout
+	 */
+	private Runnable expiryTask = new Runnable() {
+		@Override
+		public void run() {
+			synchronized(_lock){
+				if(!_scanning || !_windowOpen)
+					return;
+				_expiryWheel.advance(scanTime(_clock.nanoTime()), _expired);
+				if(!_expired.isEmpty()){
+					// One compaction of the order for all the iBeacons expired in this tick
+					_proximityIndex.removeAll(_expired);
+					for(int i=0;i<_expired.size();i++){
+						IBeaconEntry e = _expired.get(i);
+						_registry.remove(e);
+						exitRegions(e);
+						removeAnchor(e);
+						_removed.add(e.ibeacon);
+						if(_adaptiveController != null)
+							_adaptiveController.beaconLost();
+					}
+					_expired.clear();
+					notifyListener();
+				}else if(_regionStateMachine != null && _regionStateMachine.isPending()){
+					// Dwell times elapse even if nothing expires, the rest is evaluated on every advertisement
+					notifyListener();
+				}
+				publishDelta();
+				// Rescheduled under the lock, so that a concurrent stop either sees it or is seen
+				_scheduler.schedule(this, EXPIRY_TICK);
+			}
+			dispatch();
+		}
+	};
+	
+	/**
+	 * Collects the possible region-based events for the listeners
+	 */
+	private void notifyListener(){
+		if(_regionStateMachine != null){
+			IBeacon current = _regionStateMachine.getCurrent();
+			boolean present = current != null && _registry.find(current.getUuidMostSignificantBits(),
+					current.getUuidLeastSignificantBits(), current.getMajorMinor(), current.getMacAddressLong()) != null;
+			IBeaconEntry nearest = _proximityIndex.nearestEntry();
+			_regionStateMachine.evaluate(scanTime(_clock.nanoTime()), nearest == null ? null : nearest.ibeacon,
+					nearest == null ? 0 : nearest.samples, present, _exited, _entered);
+			return;
+		}
+		IBeacon newNearestBeacon = _proximityIndex.nearest();
+		
+    	// Case 1: enter iBeacon region from nowhere
+    	if(_previousNearestIBeacon == null && newNearestBeacon != null){
+    		_entered.add(newNearestBeacon);
+    		_previousNearestIBeacon = newNearestBeacon;
+    	}
+    	// Case 2: keep in the same iBeacon region, update proximity
+    	else if(_previousNearestIBeacon != null && newNearestBeacon != null && _previousNearestIBeacon.equals(newNearestBeacon)){
+    		_previousNearestIBeacon = newNearestBeacon;
+    	}
+    	// Case 3: enter a different iBeacon region (roaming)
+    	else if(_previousNearestIBeacon != null && newNearestBeacon != null && !_previousNearestIBeacon.equals(newNearestBeacon)){
+    		_exited.add(_previousNearestIBeacon);
+    		_entered.add(newNearestBeacon);
+    		_previousNearestIBeacon = newNearestBeacon;
+    	}
+    	// Case 4: leave iBeacon region
+    	else if(_previousNearestIBeacon != null && newNearestBeacon == null){
+    		_exited.add(_previousNearestIBeacon);
+    		_previousNearestIBeacon = null;
+    	}	    	
+	}
+	
+	/**
+	 * Opens a scan window
+	 */
+	private Runnable windowStartTask = new Runnable() {
+		@Override
+		public void run() {
+			synchronized(_lock){
+				if(!_scanning)
+					return;
+				_windowStart = _clock.nanoTime();
+				_windowOpen = true;
+			}
+			startSource();
+			boolean stopped;
+			synchronized(_lock){
+				stopped = !_scanning;
+				if(!stopped){
+					_scheduler.schedule(expiryTask, EXPIRY_TICK);
+					_scheduler.schedule(windowEndTask, getDutyCycle().getScanMillis());
+				}
+			}
+			if(stopped){
+				// Stopped while starting the source, which the stop may have missed
+				stopSource();
+				return;
+			}
+			notifySearchState(SEARCH_STARTED);
+		}
+	};
+	
+	/**
+	 * Closes a scan window, reports its outcome and schedules the next one.
+	 * The iBeacons found and the region are kept for the next window.
+	 */
+	private Runnable windowEndTask = new Runnable() {
+		@Override
+		public void run() {
+			ScanDutyCycle cycle = getDutyCycle();
+			long idleMillis;
+			synchronized(_lock){
+				if(!_scanning)
+					return;
+				idleMillis = _adaptiveController == null ? cycle.getIdleMillis() : _adaptiveController.endWindow(cycle.getIdleMillis());
+			}
+			_scheduler.cancel(expiryTask);
+			if(idleMillis > 0)
+				stopSource();
+			boolean empty;
+			boolean reopened = false;
+			synchronized(_lock){
+				if(!_scanning)
+					return;
+				closeWindow();
+				empty = _proximityIndex.size() == 0;
+				notifyListener();
+				publishDelta();
+				// Only continued if not stopped meanwhile, checked and scheduled under the lock
+				if(idleMillis > 0){
+					_scheduler.schedule(windowStartTask, idleMillis);
+				}else{
+					// No rest, the source keeps running and a new window opens right away
+					_windowStart = _clock.nanoTime();
+					_windowOpen = true;
+					reopened = true;
+					_scheduler.schedule(expiryTask, EXPIRY_TICK);
+					_scheduler.schedule(windowEndTask, cycle.getScanMillis());
+				}
+			}
+			notifySearchState(empty ? SEARCH_END_EMPTY : SEARCH_END_SUCCESS);
+			dispatch();
+			if(reopened)
+				notifySearchState(SEARCH_STARTED);
+		}
+	};
+	
+	/**
+	 * Reports the search state to the listener, if any. Only the batch listener or the subscriptions may be
+	 * configured.
+	 */
+	private void notifySearchState(int state){
+		IBeaconListener listener = _listener;
+		if(listener != null)
+			listener.searchState(state);
+	}
+	
+	private void closeWindow(){
+		if(_windowOpen){
+			_scanTime = scanTime(_clock.nanoTime());
+			_windowOpen = false;
+		}
+	}
+	
+	/**
+	 * Starts or stops the scanning process looking for iBeacons.
+	 * While started, the scan runs in windows following the current {@link ScanDutyCycle}.
+	 * @param enable <code>true</code> to start scanning, <code>false</code> to stop the scanning process
+	 */
+	public void scanIBeacons(final boolean enable) {
+		// Any window task running from now on sees the scan stopped and does not schedule anything else
+		synchronized(_lock){
+			_scanning = false;
+			closeWindow();
+		}
+		_scheduler.cancel(windowStartTask);
+		_scheduler.cancel(windowEndTask);
+		_scheduler.cancel(expiryTask);
+		stopSource();
+		if (enable) {
+			synchronized(_lock){
+				_scanning = true;
+				for(int i=0;i<_proximityIndex.size();i++)
+					removeAnchor(_proximityIndex.entryAt(i));
+				_proximityIndex.clear();
+				_registry.clear();
+				_expiryWheel.clear();
+				_added.clear();
+				_updated.clear();
+				_removed.clear();
+				_exited.clear();
+				_entered.clear();
+				_zoneChanged.clear();
+				_scanTime = 0;
+				// A new scan starts outside every region
+				_regionIndex.clearInside(_regionsExited);
+				publishDelta();
+			}
+			dispatch();
+			windowStartTask.run();
+		} else {
+			notifySearchState(SEARCH_END_SUCCESS);
+		}
+	}
+
+	private void startSource(){
+		BufferedScanCallback callback = _bufferedCallback;
+		_activeCallback = callback;
+		if(callback != null){
+			callback.start();
+			_scanSource.start(callback);
+		}else{
+			_scanSource.start(_scanCallback);
+		}
+	}
+	
+	private void stopSource(){
+		_scanSource.stop();
+		// Delivers what is left in the buffer before stopping its thread
+		BufferedScanCallback callback = _activeCallback;
+		_activeCallback = null;
+		if(callback != null){
+			// The consumer may be waiting for a blocking subscriber whose thread is this one: let it drop instead
+			IBeaconSubscription[] subscriptions = _subscriptions.toArray(new IBeaconSubscription[0]);
+			for(int i=0;i<subscriptions.length;i++)
+				subscriptions[i].beginClose();
+			try {
+				callback.stop();
+			} finally {
+				for(int i=0;i<subscriptions.length;i++)
+					subscriptions[i].endClose();
+			}
+		}
+	}
+
+	/**
+	 * Obtains BLE advertisement data and checks if it is a beacon of a registered format.
+	 * The fields are left in <code>_advertisement</code>, no iBeacon is created here.
+	 * @param data the advertisement data
+	 * @return <code>true</code> if a beacon passing the scan filter was found, <code>false</code> otherwise.
+	 */
+	private boolean parseAdvertisementData(byte[] data){
+		if(!_advertisement.wrap(data))
+			return false;
+		// Telemetry has no identity to filter, it only updates beacons already accepted
+		if(_advertisement.getFrameType() == IBeacon.FRAME_EDDYSTONE_TLM)
+			return true;
+		// Unknown identities are rejected by the Bloom filter of the allow list before anything else
+		IBeaconAllowList allowList = _allowList;
+		if(allowList != null && !allowList.contains(_advertisement.getUuidMostSignificantBits(),
+				_advertisement.getUuidLeastSignificantBits(), _advertisement.getMajorMinor()))
+			return false;
+		// Now filter beacons if any filter
+		ScanFilter filter = _scanFilter;
+		return filter == null || filter.matches(_advertisement.getUuidMostSignificantBits(), _advertisement.getUuidLeastSignificantBits(),
+				_advertisement.getMajor(), _advertisement.getMinor());
+	}
+	
+	/**
+	 * Returns the connectable state of the wrapped iBeacon (easiBeacon only)
+	 * 
+	 * @return <code>true</code> if the easiBeacon is in connectable mode, <code>false</code> otherwise.
+	 */
+	private boolean getConnectable(){
+		// Connectable easiBeacons send a scan response, found after the iBeacon frame
+		return _advertisement.hasStructuresAfterFrame();
+	}
+
+	/**
+	 * Immutable copy of the proximity order and the version of the index it was taken from
+	 */
+	private static final class Snapshot {
+		
+		final int version;
+		
+		final IBeacon[] ibeacons;
+		
+		Snapshot(int version, IBeacon[] ibeacons){
+			this.version = version;
+			this.ibeacons = ibeacons;
+		}
+	}
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.easibeacon.protocol;
+
+/**
+ * Registry entry for a discovered iBeacon, holding its packed identity and the scanning state
+ * 
+ * @author inakivazquez
+ *
+ */
+final class IBeaconEntry {
+
+	/**
+	 * The iBeacon this entry refers to
+	 */
+	final IBeacon ibeacon;
+
+	final long uuidMsb;
+
+	final long uuidLsb;
+
+	/**
+	 * Major and minor packed, major in the high half
+	 */
+	final int majorMinor;
+
+	/**
+	 * MAC address packed in the lower 48 bits
+	 */
+	final long mac;
+
+	final int hash;
+
+	/**
+	 * Next entry in the same registry bucket
+	 */
+	IBeaconEntry hashNext;
+
+	/**
+	 * Next entry with the same MAC address bucket
+	 */
+	IBeaconEntry macNext;
+
+	/**
+	 * Position of this entry in the proximity index, -1 if not indexed
+	 */
+	int proximityIndex = -1;
+
+	/**
+	 * Smooths the RSSI samples of this iBeacon
+	 */
+	RssiFilter rssiFilter;
+
+	/**
+	 * Number of RSSI samples received
+	 */
+	int samples;
+
+	/**
+	 * Encoded URL last set on the iBeacon, <code>null</code> if none
+	 */
+	byte[] url;
+
+	/**
+	 * Monitored regions this iBeacon counts in, by tier, <code>null</code> if none
+	 */
+	RegionIndex.Node uuidRegion;
+
+	RegionIndex.Node majorRegion;
+
+	RegionIndex.Node minorRegion;
+
+	/**
+	 * Index of this iBeacon in the floor map of the position estimator, -1 if not an anchor
+	 */
+	int anchor = -1;
+
+	/**
+	 * When this iBeacon was last seen, in nanoseconds
+	 */
+	long lastSeen;
+
+	/**
+	 * Last processing tick in which this iBeacon was reported as updated
+	 */
+	int deltaTick = -1;
+
+	/**
+	 * Last processing tick in which this iBeacon was reported as changing zone
+	 */
+	int zoneTick = -1;
+
+	/**
+	 * Slot of the iBeacon in the identity pool, refreshed on every sighting, -1 if not pooled
+	 */
+	int poolSlot = -1;
+
+	/**
+	 * Links of this entry in the expiry wheel, <code>expirySlot</code> is -1 if not scheduled
+	 */
+	IBeaconEntry expiryPrev;
+
+	IBeaconEntry expiryNext;
+
+	int expirySlot = -1;
+
+	long expiryDeadline;
+
+	IBeaconEntry(IBeacon ibeacon, long uuidMsb, long uuidLsb, int majorMinor, long mac){
+		this.ibeacon = ibeacon;
+		this.uuidMsb = uuidMsb;
+		this.uuidLsb = uuidLsb;
+		this.majorMinor = majorMinor;
+		this.mac = mac;
+		this.hash = IBeaconRegistry.hash(uuidMsb, uuidLsb, majorMinor, mac);
+	}
+
+	boolean matches(long uuidMsb, long uuidLsb, int majorMinor, long mac){
+		return this.majorMinor == majorMinor && this.mac == mac
+				&& this.uuidLsb == uuidLsb && this.uuidMsb == uuidMsb;
+	}
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.easibeacon.protocol;
+
+import java.util.List;
+
+/**
+ * Delivers the deltas to an {@link IBeaconListener}, as separate calls in the order it has always received them:
+ * the iBeacons found first, then the regions left and finally the regions entered
+ * 
+ * @author inakivazquez
+ *
+ */
+public class IBeaconListenerAdapter implements IBeaconBatchListener {
+
+	private final IBeaconListener _listener;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param listener the listener receiving the events
+	 */
+	public IBeaconListenerAdapter(IBeaconListener listener){
+		_listener = listener;
+	}
+
+	public IBeaconListener getListener(){
+		return _listener;
+	}
+
+	@Override
+	public void onDelta(IBeaconDelta delta) {
+		List<IBeaconSample> added = delta.getAdded();
+		for(int i=0;i<added.size();i++)
+			_listener.beaconFound(added.get(i).getIBeacon());
+		List<IBeacon> list = delta.getExited();
+		for(int i=0;i<list.size();i++)
+			_listener.exitRegion(list.get(i));
+		list = delta.getEntered();
+		for(int i=0;i<list.size();i++)
+			_listener.enterRegion(list.get(i));
+	}
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.easibeacon.protocol;
+
+/**
+ * Bounded pool of canonical iBeacon instances, keyed by the packed identity (UUID, major, minor and MAC address).
+ * Repeated sightings of the same identity, even after it expired from the registry, resolve to the same instance.
+ * When full, the least recently used identity is evicted, recency being the last sighting: the engine refreshes
+ * the identities in view with {@link #touch(int, IBeacon)}. The pool is preallocated and does not allocate afterwards.
+ * Not thread safe, the engine uses it while holding its lock. A pool belongs to a single engine, the engine
+ * refuses a pool already configured on another one, since the two locks would not serialize the accesses.
+ * 
+ * @author inakivazquez
+ *
+ */
+public final class IBeaconPool {
+
+	private static final int NONE = -1;
+
+	private final int[] _buckets;
+
+	private final long[] _uuidMsb;
+
+	private final long[] _uuidLsb;
+
+	private final long[] _mac;
+
+	private final int[] _majorMinor;
+
+	private final int[] _hash;
+
+	private final IBeacon[] _values;
+
+	/**
+	 * Next node in the same bucket, or in the free list
+	 */
+	private final int[] _chainNext;
+
+	/**
+	 * Recency list, from the most (<code>_lruHead</code>) to the least recently used (<code>_lruTail</code>)
+	 */
+	private final int[] _lruPrev;
+
+	private final int[] _lruNext;
+
+	private int _lruHead = NONE;
+
+	private int _lruTail = NONE;
+
+	private int _free;
+
+	private int _size;
+
+	private long _hits;
+
+	private long _misses;
+
+	private long _evictions;
+
+	/**
+	 * Engine the pool is configured on, <code>null</code> if none
+	 */
+	private Object _owner;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param capacity the maximum number of identities kept
+	 */
+	public IBeaconPool(int capacity){
+		if(capacity < 1)
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		int buckets = Integer.highestOneBit(capacity) << 1;
+		_buckets = new int[buckets];
+		_uuidMsb = new long[capacity];
+		_uuidLsb = new long[capacity];
+		_mac = new long[capacity];
+		_majorMinor = new int[capacity];
+		_hash = new int[capacity];
+		_values = new IBeacon[capacity];
+		_chainNext = new int[capacity];
+		_lruPrev = new int[capacity];
+		_lruNext = new int[capacity];
+		clear();
+	}
+
+	/**
+	 * Looks up the canonical instance of an identity
+	 * 
+	 * @return the instance, or <code>null</code> if not pooled
+	 */
+	public IBeacon get(long uuidMsb, long uuidLsb, int majorMinor, long mac){
+		int i = lookup(uuidMsb, uuidLsb, majorMinor, mac);
+		return i == NONE ? null : _values[i];
+	}
+
+	/**
+	 * Looks up the slot of an identity, as the most recently used
+	 * 
+	 * @return the slot, or -1 if not pooled
+	 */
+	int lookup(long uuidMsb, long uuidLsb, int majorMinor, long mac){
+		int h = IBeaconRegistry.hash(uuidMsb, uuidLsb, majorMinor, mac);
+		for(int i = _buckets[h & (_buckets.length - 1)]; i != NONE; i = _chainNext[i]){
+			if(_hash[i] == h && _majorMinor[i] == majorMinor && _mac[i] == mac
+					&& _uuidLsb[i] == uuidLsb && _uuidMsb[i] == uuidMsb){
+				_hits++;
+				touch(i);
+				return i;
+			}
+		}
+		_misses++;
+		return NONE;
+	}
+
+	/**
+	 * @return the instance pooled in a slot
+	 */
+	IBeacon valueAt(int slot){
+		return _values[slot];
+	}
+
+	/**
+	 * Marks an identity as just seen, so that it is the last to be evicted. Constant time, called on every sighting.
+	 * 
+	 * @param slot the slot returned when it was pooled or looked up
+	 * @param ibeacon the instance expected in the slot, nothing is done if it was evicted meanwhile
+	 */
+	void touch(int slot, IBeacon ibeacon){
+		if(slot >= 0 && slot < _values.length && _values[slot] == ibeacon)
+			touch(slot);
+	}
+
+	private void touch(int i){
+		if(_lruHead != i){
+			unlink(i);
+			linkFirst(i);
+		}
+	}
+
+	/**
+	 * Adds the canonical instance of an identity not pooled yet, evicting the least recently used if full
+	 * 
+	 * @param ibeacon the instance
+	 * @return the slot of the identity
+	 */
+	public int put(long uuidMsb, long uuidLsb, int majorMinor, long mac, IBeacon ibeacon){
+		if(_free == NONE){
+			int victim = _lruTail;
+			unlink(victim);
+			unchain(victim);
+			_values[victim] = null;
+			_chainNext[victim] = _free;
+			_free = victim;
+			_size--;
+			_evictions++;
+		}
+		int i = _free;
+		_free = _chainNext[i];
+		int h = IBeaconRegistry.hash(uuidMsb, uuidLsb, majorMinor, mac);
+		_uuidMsb[i] = uuidMsb;
+		_uuidLsb[i] = uuidLsb;
+		_majorMinor[i] = majorMinor;
+		_mac[i] = mac;
+		_hash[i] = h;
+		_values[i] = ibeacon;
+		int b = h & (_buckets.length - 1);
+		_chainNext[i] = _buckets[b];
+		_buckets[b] = i;
+		linkFirst(i);
+		_size++;
+		return i;
+	}
+
+	/**
+	 * Removes all the identities, keeping the statistics
+	 */
+	public void clear(){
+		for(int i=0;i<_buckets.length;i++)
+			_buckets[i] = NONE;
+		for(int i=0;i<_values.length;i++){
+			_values[i] = null;
+			_chainNext[i] = i + 1 < _values.length ? i + 1 : NONE;
+		}
+		_free = 0;
+		_lruHead = NONE;
+		_lruTail = NONE;
+		_size = 0;
+	}
+
+	public int size(){
+		return _size;
+	}
+
+	public int getCapacity(){
+		return _values.length;
+	}
+
+	/**
+	 * @return the lookups that found a pooled instance
+	 */
+	public long getHits(){
+		return _hits;
+	}
+
+	/**
+	 * @return the lookups that did not find a pooled instance
+	 */
+	public long getMisses(){
+		return _misses;
+	}
+
+	/**
+	 * @return the identities evicted to make room for new ones
+	 */
+	public long getEvictions(){
+		return _evictions;
+	}
+
+	/**
+	 * Binds the pool to an engine
+	 * 
+	 * @throws IllegalStateException if already bound to another engine
+	 */
+	synchronized void claim(Object owner){
+		if(_owner != null && _owner != owner)
+			throw new IllegalStateException("Pool already in use by another engine");
+		_owner = owner;
+	}
+
+	/**
+	 * Unbinds the pool from an engine, so that it can be configured on another one
+	 */
+	synchronized void release(Object owner){
+		if(_owner == owner)
+			_owner = null;
+	}
+
+	private void unchain(int i){
+		int b = _hash[i] & (_buckets.length - 1);
+		int prev = NONE;
+		for(int j = _buckets[b]; j != NONE; prev = j, j = _chainNext[j]){
+			if(j == i){
+				if(prev == NONE)
+					_buckets[b] = _chainNext[j];
+				else
+					_chainNext[prev] = _chainNext[j];
+				return;
+			}
+		}
+	}
+
+	private void linkFirst(int i){
+		_lruPrev[i] = NONE;
+		_lruNext[i] = _lruHead;
+		if(_lruHead != NONE)
+			_lruPrev[_lruHead] = i;
+		_lruHead = i;
+		if(_lruTail == NONE)
+			_lruTail = i;
+	}
+
+	private void unlink(int i){
+		if(_lruPrev[i] != NONE)
+			_lruNext[_lruPrev[i]] = _lruNext[i];
+		else
+			_lruHead = _lruNext[i];
+		if(_lruNext[i] != NONE)
+			_lruPrev[_lruNext[i]] = _lruPrev[i];
+		else
+			_lruTail = _lruPrev[i];
+	}
+}
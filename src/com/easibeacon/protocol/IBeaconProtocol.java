@@ -22,9 +22,7 @@
 package com.easibeacon.protocol;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.concurrent.Executor;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
@@ -34,7 +32,10 @@ import android.os.Handler;
 import android.util.Log;
 
 /**
- * Basic iBeacon discovery protocol
+ * Basic iBeacon discovery protocol.
+ * Android front end of the {@link IBeaconEngine}, which receives the advertisements from the {@link BluetoothAdapter}.
+ * Besides the shared instance of {@link #getInstance(Context)}, independent instances can be constructed, each with
+ * its own engine. All the methods can be called from any thread.
  * 
  * @author inakivazquez
  *
@@ -43,80 +44,78 @@ public class IBeaconProtocol {
 	/**
 	 * The BLE advertisement prefix length
 	 */
-	public static final int ADV_PREFIX_LENGTH = 9;
+	public static final int ADV_PREFIX_LENGTH = IBeaconEngine.ADV_PREFIX_LENGTH;
 	
 	/**
 	 * UUID length
 	 */	
-	public static final int ADV_UUID_LENGTH = 16;
+	public static final int ADV_UUID_LENGTH = IBeaconEngine.ADV_UUID_LENGTH;
 	
 	/**
 	 * Scanning period for iBeacon discovery in miliseconds
+	 * @deprecated scanning is now continuous, in windows configured with {@link #setDutyCycles(ScanDutyCycle, ScanDutyCycle)}
 	 */		
+	@Deprecated
 	public static int SCANNING_PERIOD = 10000;
 
 	/**
 	 * The prefix for identifying easiBeacons
 	 */	
-	public static final String EASIBEACON_IDPREFIX = "easiBeacon_";
+	public static final String EASIBEACON_IDPREFIX = IBeaconEngine.EASIBEACON_IDPREFIX;
 	
 	/**
 	 * State of the search process to notify the listener: started
 	 */	
-	public static final int SEARCH_STARTED = 1;
+	public static final int SEARCH_STARTED = IBeaconEngine.SEARCH_STARTED;
 
 	/**
 	 * State of the search process to notify the listener: no iBeacons found
 	 */	
-	public static final int SEARCH_END_EMPTY = 2;
+	public static final int SEARCH_END_EMPTY = IBeaconEngine.SEARCH_END_EMPTY;
 	
 	/**
 	 * State of the search process to notify the listener: at least one iBeacon found
 	 */		
-	public static final int SEARCH_END_SUCCESS = 3;
+	public static final int SEARCH_END_SUCCESS = IBeaconEngine.SEARCH_END_SUCCESS;
 	
 	/**
 	 * Singleton attribute for the instance of this class
 	 */	
-	private static IBeaconProtocol _ibp = null;
+	private static volatile IBeaconProtocol _ibp = null;
 	
 	/**
 	 * Reference to the BluetoothAdapter
 	 */	
-	private BluetoothAdapter _bluetoothAdapter;
+	private volatile BluetoothAdapter _bluetoothAdapter;
 
 	/**
-	 * Reference to a listener to send iBeacon events
+	 * Source of advertisements backed by the BluetoothAdapter
 	 */	
-	private IBeaconListener _listener;
+	private final AndroidScanSource _scanSource = new AndroidScanSource();
 
 	/**
-	 * UUID to filter advertisements, default value
+	 * The platform independent engine doing the actual work
 	 */	
-	private byte[] _uuid = null;
-
-	/**
-	 * <code>true</code> if currently in a scanning process
-	 */	
-	private boolean _scanning;
-
-	/**
-	 * Reference to the previous nearest iBeacon, to identify if region has changed
-	 */	
-	private IBeacon _previousNearestIBeacon = null;
-
-	/**
-	 * Ordered array of iBeacons found
-	 */	
-	private ArrayList<IBeacon> _arrOrderedIBeacons = new ArrayList<IBeacon>();
+	private final IBeaconEngine _engine;
 	
-	// For controlling and resetting the timeout
-	private Handler _timeoutHandler;
+	/**
+	 * Constructor of an independent instance, running its timers on the looper of the calling thread
+	 * 
+	 * @param c Context of the Android app
+	 */
+	public IBeaconProtocol(Context c){
+		this(c, new Handler());
+	}
 	
 	/**
-	 * Private empty constructor
+	 * Constructor of an independent instance
+	 * 
+	 * @param c Context of the Android app
+	 * @param handler runs the timers of the scanning process
 	 */
-	private IBeaconProtocol(){};
+	public IBeaconProtocol(Context c, Handler handler){
+		_engine = new IBeaconEngine(_scanSource, Clock.SYSTEM, new HandlerScheduler(handler));
+	}
 	
 	/**
 	 * Obtains the reference to the singleton <code>IBeaconProtocol</code>
@@ -125,10 +124,24 @@ public class IBeaconProtocol {
 	 * @return The singleton instance
 	 */
 	public static IBeaconProtocol getInstance(Context c){
-		if(_ibp == null){
-			_ibp = new IBeaconProtocol();
+		IBeaconProtocol ibp = _ibp;
+		if(ibp == null){
+			synchronized(IBeaconProtocol.class){
+				ibp = _ibp;
+				if(ibp == null){
+					ibp = new IBeaconProtocol(c);
+					_ibp = ibp;
+				}
+			}
 		}
-		return _ibp;
+		return ibp;
+	}
+	
+	/**
+	 * @return the engine behind this protocol instance
+	 */
+	public IBeaconEngine getEngine() {
+		return _engine;
 	}
 	
 	/**
@@ -137,7 +150,7 @@ public class IBeaconProtocol {
 	 * @return the listener
 	 */
 	public IBeaconListener getListener() {
-		return _listener;
+		return _engine.getListener();
 	}
 
 	/**
@@ -145,7 +158,27 @@ public class IBeaconProtocol {
 	 * @param l the listener to configure
 	 */
 	public void setListener(IBeaconListener l) {
-		this._listener = l;
+		_engine.setListener(l);
+	}
+	
+	/**
+	 * Configures a listener receiving the iBeacon events grouped, one delta per processing tick
+	 * @param l the batch listener to configure, <code>null</code> to remove it
+	 */
+	public void setBatchListener(IBeaconBatchListener l) {
+		_engine.setBatchListener(l);
+	}
+	
+	/**
+	 * Subscribes a listener to the grouped iBeacon events, delivered on its own executor through a bounded queue
+	 * @param listener the listener receiving the deltas
+	 * @param executor runs the deliveries
+	 * @param capacity the number of deltas the queue can hold
+	 * @param overflowPolicy one of the <code>OVERFLOW_</code> constants of {@link IBeaconSubscription}
+	 * @return the subscription, to read its lag metrics or cancel it
+	 */
+	public IBeaconSubscription subscribe(IBeaconBatchListener listener, Executor executor, int capacity, int overflowPolicy) {
+		return _engine.subscribe(listener, executor, capacity, overflowPolicy);
 	}
 	
 	/**
@@ -154,7 +187,17 @@ public class IBeaconProtocol {
 	 * @return the {@link java.util.ArrayList} of iBeacons
 	 */
 	public ArrayList<IBeacon> getIBeaconsByProximity(){
-		return _arrOrderedIBeacons;
+		return _engine.getIBeaconsByProximity();
+	}
+	
+	/**
+	 * Obtains the nearest discovered iBeacons ordered by estimated proximity
+	 * 
+	 * @param k maximum number of iBeacons to return
+	 * @return the {@link java.util.ArrayList} with at most <code>k</code> iBeacons, nearest first
+	 */
+	public ArrayList<IBeacon> getNearest(int k){
+		return _engine.getNearest(k);
 	}
 	
 	/**
@@ -162,7 +205,65 @@ public class IBeaconProtocol {
 	 * Used mainly for administration purposes.
 	 */
 	public void reset(){
-		_previousNearestIBeacon = null;
+		_engine.reset();
+	}
+	
+	/**
+	 * Configures a state machine deciding the region with dwell times and margins
+	 * @param stateMachine the state machine, <code>null</code> to follow the nearest iBeacon immediately
+	 */
+	public void setRegionStateMachine(RegionStateMachine stateMachine){
+		_engine.setRegionStateMachine(stateMachine);
+	}
+	
+	/**
+	 * Starts monitoring a region, entered while any of its iBeacons is in view
+	 * @param region the region
+	 * @return <code>false</code> if the region was already monitored
+	 */
+	public boolean addRegion(Region region){
+		return _engine.addRegion(region);
+	}
+	
+	/**
+	 * Stops monitoring a region
+	 * @param region the region
+	 * @return <code>false</code> if the region was not monitored
+	 */
+	public boolean removeRegion(Region region){
+		return _engine.removeRegion(region);
+	}
+	
+	/**
+	 * Sets the listener for the monitored regions
+	 */
+	public void setRegionListener(RegionListener l){
+		_engine.setRegionListener(l);
+	}
+	
+	/**
+	 * Sets the boundaries of the proximity zones
+	 * @param zones the zones, <code>null</code> for {@link ProximityZones#DEFAULT}
+	 */
+	public void setProximityZones(ProximityZones zones){
+		_engine.setProximityZones(zones);
+	}
+	
+	/**
+	 * Sets the listener for the proximity zone changes
+	 */
+	public void setProximityZoneListener(ProximityZoneListener l){
+		_engine.setProximityZoneListener(l);
+	}
+	
+	/**
+	 * Configures a position estimator over the iBeacons of its floor map
+	 * @param estimator the estimator, <code>null</code> to stop positioning
+	 * @param intervalMillis the minimum time between two estimates
+	 * @param listener the listener receiving the positions
+	 */
+	public void setPositionEstimator(PositionEstimator estimator, long intervalMillis, PositionListener listener){
+		_engine.setPositionEstimator(estimator, intervalMillis, listener);
 	}
 	
 	/**
@@ -171,135 +272,38 @@ public class IBeaconProtocol {
 	 * @return <code>true</code> if currently scanning iBeacons. <code>false</code> otherwise.
 	 */
 	public boolean isScanning(){
-		return _scanning;
+		return _engine.isScanning();
 	}
 	
 	/**
-	 * Configures the Bluetooth adapter and stores a reference to it
+	 * Configures the Bluetooth adapter of the singleton instance and stores a reference to it
 	 * 
 	 * @param c the current context
 	 * @return <code>true</code> if initialization was successful. <code>false</code> otherwise.
 	 */
 	public static boolean configureBluetoothAdapter(Context c){
+		return getInstance(c).configureBluetooth(c);
+	}
+	
+	/**
+	 * Configures the Bluetooth adapter of this instance and stores a reference to it
+	 * 
+	 * @param c the current context
+	 * @return <code>true</code> if initialization was successful. <code>false</code> otherwise.
+	 */
+	public boolean configureBluetooth(Context c){
 		// Initializes Bluetooth adapter.
 		final BluetoothManager bluetoothManager =
 		        (BluetoothManager) c.getSystemService(Context.BLUETOOTH_SERVICE);
-		_ibp._bluetoothAdapter = bluetoothManager.getAdapter();
-		if (_ibp._bluetoothAdapter == null || !_ibp._bluetoothAdapter.isEnabled()) {
+		BluetoothAdapter adapter = bluetoothManager.getAdapter();
+		_scanSource.setBluetoothAdapter(adapter);
+		_bluetoothAdapter = adapter;
+		if (adapter == null || !adapter.isEnabled()) {
 		    return false;
 		}		
 		return true;
 	}
 	
-	/**
-	 * Callback for processing BLE events, to identify iBeacons during the scanning process.
-	 */
-	private BluetoothAdapter.LeScanCallback mLeScanCallback = new BluetoothAdapter.LeScanCallback() {
-	    @Override
-	    public void onLeScan(final BluetoothDevice device, int rssi,
-	            byte[] scanRecord) {
-	    	
-			Log.i(Utils.LOG_TAG,"BLE packet received");
-	    	
-	    	IBeacon newBeacon = parseAdvertisementData(scanRecord);
-	    	if(newBeacon == null)
-	    		return;
-	    	
-	    	newBeacon.setMacAddress(device.getAddress());
-
-	    	// If already discovered, then just refresh the RSSI of the existing instance and return
-	    	if(_arrOrderedIBeacons.contains(newBeacon)){
-	    		int newDistance = (int)calculateDistance(newBeacon.getPowerValue(), rssi);
-	    		IBeacon previousIBeaconInfo = findIfExists(newBeacon);
-	    		int oldDistance = previousIBeaconInfo.getProximity();
-	    		if(newDistance < oldDistance){
-	    			Log.i(Utils.LOG_TAG,"Updating distance");
-	    			previousIBeaconInfo.setProximity(newDistance);
-		    		// Sort again
-			    	Collections.sort(_arrOrderedIBeacons, new IBeaconProximityComparator());
-	    		}
-	    		return;
-	    	}
-	    	
-    		newBeacon.setEasiBeacon(false);
-	    	if(device.getName() != null){
-		    	if(device.getName().startsWith(EASIBEACON_IDPREFIX)){
-		    		newBeacon.setEasiBeacon(true);
-		    		String version = device.getName().substring(EASIBEACON_IDPREFIX.length());
-		    		newBeacon.setVersionModel(version);
-		    		if(newBeacon.getVersion() == 1){
-		    			// Version 1 is always connectable
-		    			newBeacon.setConnectable(true);
-		    		}else if(newBeacon.getVersion() == 2){
-		    			newBeacon.setConnectable(getConnectable(scanRecord));
-		    			if(!newBeacon.isConnectable())
-		    				newBeacon.setEasiBeacon(false); //If not connectable we will report it as unknown 
-		    		}		    		
-		    	}
-	    	}
-	    	// Review this
-	    	Log.i(Utils.LOG_TAG,device.getName() + " " + device.getAddress() + " " + newBeacon.getPowerValue() + " " + rssi + " Connectable: " + newBeacon.isConnectable());
-	    	newBeacon.setProximity((int)calculateDistance(newBeacon.getPowerValue(), rssi));
-	    	
-	    	if(!_arrOrderedIBeacons.contains(newBeacon)){
-		    	_arrOrderedIBeacons.add(newBeacon);
-		    	Collections.sort(_arrOrderedIBeacons, new IBeaconProximityComparator());
-		    	_listener.beaconFound(newBeacon);
-		    	
-		    	// Every time a new beacon is found, reset the timeout
-		    	_timeoutHandler.removeCallbacks(timeoutTask);
-				_timeoutHandler.postDelayed(timeoutTask, IBeaconProtocol.SCANNING_PERIOD);
-
-	    	} 	
-	   }
-	       
-	};
-	
-	/**
-	 * Finds an ibeacon in the list of previously discovered ibeacons
-	 * 
-	 * @param b ibeacon to find
-	 * @return <code>null</code> if the ibeacon is not found, the existing copy of the ibeacon otherwise.
-	 */
-	private IBeacon findIfExists(IBeacon b){
-		for(int i=0;i<_arrOrderedIBeacons.size();i++){
-			IBeacon existing = (IBeacon)_arrOrderedIBeacons.get(i);
-			if(existing.equals(b))
-				return existing;
-		}
-		return null;
-	}
-	
-	/**
-	 * Notifies the listener about possible region-based events
-	 */
-	private void notifyListener(){
-		IBeacon newNearestBeacon = null;
-		if(_arrOrderedIBeacons.size() > 0)
-			newNearestBeacon = _arrOrderedIBeacons.get(0);
-		
-    	// Case 1: enter iBeacon region from nowhere
-    	if(_previousNearestIBeacon == null && newNearestBeacon != null){
-    		_listener.enterRegion(newNearestBeacon);
-    		_previousNearestIBeacon = newNearestBeacon;
-    	}
-    	// Case 2: keep in the same iBeacon region, update proximity
-    	else if(_previousNearestIBeacon != null && newNearestBeacon != null && _previousNearestIBeacon.equals(newNearestBeacon)){
-    		_previousNearestIBeacon = newNearestBeacon;
-    	}
-    	// Case 3: enter a different iBeacon region (roaming)
-    	else if(_previousNearestIBeacon != null && newNearestBeacon != null && !_previousNearestIBeacon.equals(newNearestBeacon)){
-    		_listener.exitRegion(_previousNearestIBeacon);
-    		_listener.enterRegion(newNearestBeacon);
-    		_previousNearestIBeacon = newNearestBeacon;
-    	}
-    	// Case 4: leave iBeacon region
-    	else if(_previousNearestIBeacon != null && newNearestBeacon == null){
-    		_listener.exitRegion(_previousNearestIBeacon);
-    		_previousNearestIBeacon = null;
-    	}	    	
-	}
-	
 	/**
 	 * Obtains a reference to the {@link android.bluetooth.BluetoothDevice} based on the MAC
 	 * @param mac the Bluetooth MAC address of the device
@@ -314,133 +318,78 @@ public class IBeaconProtocol {
 	 * @param uuid the UUID to filter ibeacon advertisements
 	 */
 	public void setScanUUID(byte[] uuid){
-		_uuid = uuid;
+		_engine.setScanUUID(uuid);
 	}
 	
-	private Runnable timeoutTask = new Runnable() {
-		@Override
-		public void run() {
-			_scanning = false;
-			_bluetoothAdapter.stopLeScan(mLeScanCallback);
-			if(_arrOrderedIBeacons.size() == 0)
-				_listener.searchState(SEARCH_END_EMPTY);
-			else
-				_listener.searchState(SEARCH_END_SUCCESS);
-			notifyListener();
-		}
-	};
+	/**
+	 * Replaces the filter of the advertisements, even while scanning
+	 * @param filter the filter, <code>null</code> to accept every iBeacon
+	 */
+	public void setScanFilter(ScanFilter filter){
+		_engine.setScanFilter(filter);
+	}
 	
 	/**
-	 * Starts or stops the scanning process looking for iBeacons
-	 * @param enable <code>true</code> to start scanning, <code>false</code> to stop the scanning process
+	 * Adds a decoder for another beacon format, only iBeacon frames are decoded by default
+	 * @param decoder the decoder, such as {@link EddystoneDecoder} or {@link AltBeaconDecoder}
 	 */
-	public void scanIBeacons(final boolean enable) {
-		if (enable) {
-			// Stops scanning after a pre-defined scan period.
-			_timeoutHandler = new Handler();
-			_timeoutHandler.postDelayed(timeoutTask, IBeaconProtocol.SCANNING_PERIOD);
-
-			_scanning = true;
-			_arrOrderedIBeacons.clear();
-			_bluetoothAdapter.startLeScan(mLeScanCallback);
-			_listener.searchState(SEARCH_STARTED);
-		} else {
-			_scanning = false;
-			_bluetoothAdapter.stopLeScan(mLeScanCallback);
-			_listener.searchState(SEARCH_END_SUCCESS);
-		}
-		// Cannot obtain error status=133 this way
-		Log.i(Utils.LOG_TAG,"The status:" + _bluetoothAdapter.getProfileConnectionState(BluetoothProfile.GATT));
+	public void addFrameDecoder(FrameDecoder decoder){
+		_engine.addFrameDecoder(decoder);
 	}
 	
 	/**
-	 * Direct call to start scanning for iBeacons
+	 * Replaces the list of accepted identities, even while scanning
+	 * @param allowList the accepted identities, <code>null</code> to accept every iBeacon
 	 */
-	public void startScan(){
-		if(_bluetoothAdapter != null)
-			scanIBeacons(true);
+	public void setAllowList(IBeaconAllowList allowList){
+		_engine.setAllowList(allowList);
 	}
 	
 	/**
-	 * Direct call to stop scanning for iBeacons
+	 * Configures the scan windows and the rest between them
+	 * 
+	 * @param foreground the duty cycle while the app is in the foreground
+	 * @param background the duty cycle while the app is in the background
 	 */
-	public void stopScan(){
-		if(_bluetoothAdapter != null)
-			scanIBeacons(false);
+	public void setDutyCycles(ScanDutyCycle foreground, ScanDutyCycle background) {
+		_engine.setDutyCycles(foreground, background);
 	}
 
 	/**
-	 * Obtains BLE advertisement data and checks if it is an iBeacon
-	 * @param data the advertisement data
-	 * @return the IBeacon found or null if not an iBeacon
-	 */
-	private IBeacon parseAdvertisementData(byte[] data){
-		Log.i(Utils.LOG_TAG,Arrays.toString(data));
-		// First, check the prefix for our beacons
-		if(data[0]==0x02 && data[1]==0x01 && data[4]==(byte)0xFF && data[7]==0x02){ // iBeacon candidate
-			byte[] uuid = Arrays.copyOfRange(data, ADV_PREFIX_LENGTH, ADV_PREFIX_LENGTH + ADV_UUID_LENGTH);
-			// Now filter beacons based on UUID if any
-			if(_uuid == null || Arrays.equals(_uuid, uuid)){
-				int offset = ADV_PREFIX_LENGTH + ADV_UUID_LENGTH;
-				IBeacon ibeacon = new IBeacon();
-				ibeacon.setUuid(uuid);
-				int major = ((data[offset] << 8) & 0x0000ff00) | (data[offset+1] & 0x000000ff);
-				ibeacon.setMajor(major);
-				int minor = ((data[offset+2] << 8) & 0x0000ff00) | (data[offset+3] & 0x000000ff);
-				ibeacon.setMinor(minor);
-				ibeacon.setPowerValue(data[offset+4]);
-				return ibeacon;
-			}
-		}
-		return null;
+	 * Switches between the foreground and the background duty cycles, to be called from the activity lifecycle
+	 * 
+	 * @param background <code>true</code> if the app is in the background
+	 */
+	public void setBackgroundMode(boolean background) {
+		_engine.setBackgroundMode(background);
 	}
 	
 	/**
-	 * Returns the connectable state of an iBeacon (easiBeacon only)
-	 * 
-	 * @param data advertisement data
-	 * @return <code>true</code> if the easiBeacon is in connectable mode, <code>false</code> otherwise.
+	 * Starts or stops the scanning process looking for iBeacons
+	 * @param enable <code>true</code> to start scanning, <code>false</code> to stop the scanning process
 	 */
-	private boolean getConnectable(byte[] data){
-		// If byte 31 of the advertisement is 0 then is not connectable
-		if(data[31] != 0) return true;
-		return false;
+	public void scanIBeacons(final boolean enable) {
+		_engine.scanIBeacons(enable);
+		// Cannot obtain error status=133 this way
+		BluetoothAdapter adapter = _bluetoothAdapter;
+		if(adapter != null)
+			Log.i(Utils.LOG_TAG,"The status:" + adapter.getProfileConnectionState(BluetoothProfile.GATT));
 	}
 	
 	/**
-	 * Roughly estimates the distance to the iBeacon
-	 * Calculation obtained from http://stackoverflow.com/questions/20416218/understanding-ibeacon-distancing
-	 *  
-	 * @param txPower RSSI of the iBeacon at 1 meter
-	 * @param rssi measured RSSI by the user device
-	 * @return
+	 * Direct call to start scanning for iBeacons
 	 */
-	private double calculateDistance(int txPower, double rssi) {
-		if (rssi == 0) {
-			return -1.0; // if we cannot determine accuracy, return -1.
-		}
-
-		double ratio = rssi*1.0/txPower;
-		if (ratio < 1.0) {
-			return Math.pow(ratio,10);
-		}
-		else {
-			double accuracy =  (0.89976)*Math.pow(ratio,7.7095) + 0.111;    
-			return accuracy;
-		}
-	} 
+	public void startScan(){
+		if(_bluetoothAdapter != null)
+			scanIBeacons(true);
+	}
 	
 	/**
-	 * Implements a proximity comparator of distance for iBeacons
-	 * @author inakivazquez
-	 *
+	 * Direct call to stop scanning for iBeacons
 	 */
-	private class IBeaconProximityComparator implements Comparator<IBeacon> {
-	    @Override
-	    public int compare(IBeacon b1, IBeacon b2) {
-	        return b1.getProximity()-b2.getProximity();
-	    }
+	public void stopScan(){
+		if(_bluetoothAdapter != null)
+			scanIBeacons(false);
 	}
-	
 
 }
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.easibeacon.protocol;
+
+/**
+ * Hash index of the discovered iBeacons, keyed by the packed identity (UUID, major, minor and MAC address).
+ * Lookups do not allocate and take constant time regardless of the number of iBeacons in view.
+ * A second index by MAC address finds the frames of the same device, for telemetry without an identity.
+ * Proximity order is kept elsewhere.
+ * 
+ * @author inakivazquez
+ *
+ */
+final class IBeaconRegistry {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private static final float LOAD_FACTOR = 0.75f;
+
+	private IBeaconEntry[] _buckets = new IBeaconEntry[INITIAL_CAPACITY];
+
+	private IBeaconEntry[] _macBuckets = new IBeaconEntry[INITIAL_CAPACITY];
+
+	private int _size;
+
+	/**
+	 * Finds the entry for an identity
+	 * 
+	 * @return the entry, or <code>null</code> if not registered
+	 */
+	public IBeaconEntry find(long uuidMsb, long uuidLsb, int majorMinor, long mac){
+		int h = hash(uuidMsb, uuidLsb, majorMinor, mac);
+		for(IBeaconEntry e = _buckets[h & (_buckets.length - 1)]; e != null; e = e.hashNext){
+			if(e.hash == h && e.matches(uuidMsb, uuidLsb, majorMinor, mac))
+				return e;
+		}
+		return null;
+	}
+
+	/**
+	 * Gives the first entry of the MAC address bucket, to be walked through <code>macNext</code>.
+	 * The bucket may hold other MAC addresses, check <code>mac</code> on every entry.
+	 * 
+	 * @return the first entry of the bucket, <code>null</code> if empty
+	 */
+	public IBeaconEntry findByMac(long mac){
+		return _macBuckets[macHash(mac) & (_macBuckets.length - 1)];
+	}
+
+	/**
+	 * Registers a new entry. The caller must check first that the identity is not registered.
+	 * 
+	 * @param e the entry to add
+	 */
+	public void add(IBeaconEntry e){
+		if(_size + 1 > _buckets.length * LOAD_FACTOR)
+			resize(_buckets.length << 1);
+		int i = e.hash & (_buckets.length - 1);
+		e.hashNext = _buckets[i];
+		_buckets[i] = e;
+		int j = macHash(e.mac) & (_macBuckets.length - 1);
+		e.macNext = _macBuckets[j];
+		_macBuckets[j] = e;
+		_size++;
+	}
+
+	/**
+	 * Removes an entry
+	 * 
+	 * @param e the entry to remove
+	 * @return <code>true</code> if the entry was registered
+	 */
+	public boolean remove(IBeaconEntry e){
+		int i = e.hash & (_buckets.length - 1);
+		IBeaconEntry prev = null;
+		for(IBeaconEntry cur = _buckets[i]; cur != null; prev = cur, cur = cur.hashNext){
+			if(cur == e){
+				if(prev == null)
+					_buckets[i] = cur.hashNext;
+				else
+					prev.hashNext = cur.hashNext;
+				cur.hashNext = null;
+				removeMac(e);
+				_size--;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void removeMac(IBeaconEntry e){
+		int i = macHash(e.mac) & (_macBuckets.length - 1);
+		IBeaconEntry prev = null;
+		for(IBeaconEntry cur = _macBuckets[i]; cur != null; prev = cur, cur = cur.macNext){
+			if(cur == e){
+				if(prev == null)
+					_macBuckets[i] = cur.macNext;
+				else
+					prev.macNext = cur.macNext;
+				cur.macNext = null;
+				return;
+			}
+		}
+	}
+
+	public int size(){
+		return _size;
+	}
+
+	public void clear(){
+		for(int i=0;i<_buckets.length;i++){
+			_buckets[i] = null;
+			_macBuckets[i] = null;
+		}
+		_size = 0;
+	}
+
+	private void resize(int capacity){
+		IBeaconEntry[] old = _buckets;
+		_buckets = new IBeaconEntry[capacity];
+		for(int i=0;i<old.length;i++){
+			IBeaconEntry e = old[i];
+			while(e != null){
+				IBeaconEntry next = e.hashNext;
+				int j = e.hash & (capacity - 1);
+				e.hashNext = _buckets[j];
+				_buckets[j] = e;
+				e = next;
+			}
+		}
+		old = _macBuckets;
+		_macBuckets = new IBeaconEntry[capacity];
+		for(int i=0;i<old.length;i++){
+			IBeaconEntry e = old[i];
+			while(e != null){
+				IBeaconEntry next = e.macNext;
+				int j = macHash(e.mac) & (capacity - 1);
+				e.macNext = _macBuckets[j];
+				_macBuckets[j] = e;
+				e = next;
+			}
+		}
+	}
+
+	/**
+	 * Mixes the packed identity into a well distributed hash
+	 */
+	static int hash(long uuidMsb, long uuidLsb, int majorMinor, long mac){
+		long h = uuidMsb * 0x9E3779B97F4A7C15L;
+		h = (h ^ uuidLsb) * 0x9E3779B97F4A7C15L;
+		h = (h ^ majorMinor) * 0x9E3779B97F4A7C15L;
+		h = (h ^ mac) * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32));
+	}
+
+	private static int macHash(long mac){
+		long h = mac * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32));
+	}
+}
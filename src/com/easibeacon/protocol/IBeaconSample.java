@@ -0,0 +1,108 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.easibeacon.protocol;
+
+/**
+ * Immutable measures of an iBeacon taken when a processing tick of the {@link IBeaconEngine} was published.
+ * The {@link IBeacon} instance keeps being updated by the engine thread, so its proximity, RSSI and zone may
+ * change while being read. The values of a sample do not.
+ * 
+ * @author inakivazquez
+ *
+ */
+public final class IBeaconSample {
+
+	private final IBeacon _ibeacon;
+
+	private final int _proximityCm;
+
+	private final int _rssi;
+
+	private final int _zone;
+
+	private final long _lastSeenNanos;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param ibeacon the iBeacon measured
+	 * @param proximityCm the estimated proximity in centimetres, -1 if unknown
+	 * @param rssi the filtered RSSI
+	 * @param zone the proximity zone
+	 * @param lastSeenNanos the time of the last sighting
+	 */
+	IBeaconSample(IBeacon ibeacon, int proximityCm, int rssi, int zone, long lastSeenNanos){
+		_ibeacon = ibeacon;
+		_proximityCm = proximityCm;
+		_rssi = rssi;
+		_zone = zone;
+		_lastSeenNanos = lastSeenNanos;
+	}
+
+	/**
+	 * @return the iBeacon, for its identity and the fields that do not change while in view
+	 */
+	public IBeacon getIBeacon() {
+		return _ibeacon;
+	}
+
+	/**
+	 * @return the estimated proximity in centimetres, -1 if unknown
+	 */
+	public int getProximityCm() {
+		return _proximityCm;
+	}
+
+	/**
+	 * @return the estimated proximity in meters, -1 if unknown
+	 */
+	public int getProximity() {
+		return _proximityCm < 0 ? -1 : _proximityCm / 100;
+	}
+
+	/**
+	 * @return the filtered RSSI
+	 */
+	public int getRssi() {
+		return _rssi;
+	}
+
+	/**
+	 * @return the proximity zone, one of the <code>ZONE_</code> constants of {@link IBeacon}
+	 */
+	public int getZone() {
+		return _zone;
+	}
+
+	/**
+	 * @return the time of the last sighting, in the time base of the engine {@link Clock}
+	 */
+	public long getLastSeenNanos() {
+		return _lastSeenNanos;
+	}
+
+	@Override
+	public String toString() {
+		return _ibeacon + " cm:" + _proximityCm + " rssi:" + _rssi + " zone:" + _zone;
+	}
+}
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.easibeacon.protocol;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Subscription of a batch listener to the deltas of an {@link IBeaconEngine}, delivered asynchronously.
+ * Each subscription has its own bounded queue and {@link Executor}, so a slow subscriber neither stalls the
+ * packet processing nor the other subscribers, unless it asks for <code>OVERFLOW_BLOCK</code>.
+ * The deltas are delivered one at a time and in order.
+ * 
+ * @author inakivazquez
+ *
+ */
+public final class IBeaconSubscription {
+
+	/**
+	 * Overflow policy: when the queue is full, the new delta is merged into the last one queued, keeping the
+	 * latest state of every iBeacon
+	 */
+	public static final int OVERFLOW_COALESCE = 1;
+
+	/**
+	 * Overflow policy: when the queue is full, the new delta is discarded
+	 */
+	public static final int OVERFLOW_DROP = 2;
+
+	/**
+	 * Overflow policy: when the queue is full, the engine thread delivering the deltas waits until the subscriber
+	 * takes one. The engine lock is not held meanwhile, so the subscriber can call back into the engine.
+	 * The executor must not run on a thread that starts or stops the scan, such as the Handler thread of
+	 * {@link IBeaconProtocol}: while the scan stops, a full queue drops the new delta instead, so that stopping
+	 * never waits for the subscriber.
+	 */
+	public static final int OVERFLOW_BLOCK = 3;
+
+	private final IBeaconEngine _engine;
+
+	private final IBeaconBatchListener _listener;
+
+	private final Executor _executor;
+
+	private final int _overflowPolicy;
+
+	private final Clock _clock;
+
+	/**
+	 * Queued deltas and when they were queued, a circular buffer guarded by <code>this</code>
+	 */
+	private final IBeaconDelta[] _queue;
+
+	private final long[] _queuedAt;
+
+	private int _head;
+
+	private int _count;
+
+	/**
+	 * <code>true</code> while a delivery task is submitted or running
+	 */
+	private boolean _delivering;
+
+	private volatile boolean _cancelled;
+
+	private long _delivered;
+
+	private long _dropped;
+
+	private long _coalesced;
+
+	private long _blocked;
+
+	/**
+	 * Scan stops in progress, during which a full queue drops instead of blocking
+	 */
+	private int _closing;
+
+	private int _maxQueued;
+
+	private long _lastLagNanos;
+
+	private long _maxLagNanos;
+
+	private final Runnable _deliveryTask = new Runnable() {
+		@Override
+		public void run() {
+			deliver();
+		}
+	};
+
+	IBeaconSubscription(IBeaconEngine engine, IBeaconBatchListener listener, Executor executor, int capacity, int overflowPolicy){
+		if(capacity < 1)
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		if(overflowPolicy < OVERFLOW_COALESCE || overflowPolicy > OVERFLOW_BLOCK)
+			throw new IllegalArgumentException("Invalid overflow policy: " + overflowPolicy);
+		_engine = engine;
+		_listener = listener;
+		_executor = executor;
+		_overflowPolicy = overflowPolicy;
+		_clock = engine.getClock();
+		_queue = new IBeaconDelta[capacity];
+		_queuedAt = new long[capacity];
+	}
+
+	/**
+	 * Queues a delta for delivery, applying the overflow policy if the queue is full. Never called with the engine
+	 * lock held.
+	 */
+	void offer(IBeaconDelta delta){
+		boolean submit;
+		synchronized(this){
+			if(_count == _queue.length){
+				if(_overflowPolicy == OVERFLOW_DROP || _closing > 0){
+					_dropped++;
+					return;
+				}else if(_overflowPolicy == OVERFLOW_COALESCE){
+					int last = (_head + _count - 1) % _queue.length;
+					_queue[last] = IBeaconDelta.coalesce(_queue[last], delta);
+					_coalesced++;
+					return;
+				}
+				_blocked++;
+				boolean interrupted = false;
+				while(_count == _queue.length && !_cancelled && _closing == 0){
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+				if(interrupted)
+					Thread.currentThread().interrupt();
+				if(_count == _queue.length && !_cancelled){
+					// Released by a stop of the scan
+					_dropped++;
+					return;
+				}
+			}
+			if(_cancelled)
+				return;
+			int tail = (_head + _count) % _queue.length;
+			_queue[tail] = delta;
+			_queuedAt[tail] = _clock.nanoTime();
+			_count++;
+			if(_count > _maxQueued)
+				_maxQueued = _count;
+			submit = !_delivering;
+			_delivering = true;
+		}
+		if(submit)
+			_executor.execute(_deliveryTask);
+	}
+
+	private void deliver(){
+		boolean done = false;
+		try {
+			while(true){
+				IBeaconDelta delta;
+				synchronized(this){
+					if(_count == 0 || _cancelled){
+						_delivering = false;
+						done = true;
+						return;
+					}
+					delta = _queue[_head];
+					long lag = _clock.nanoTime() - _queuedAt[_head];
+					_queue[_head] = null;
+					_head = (_head + 1) % _queue.length;
+					_count--;
+					_lastLagNanos = lag;
+					if(lag > _maxLagNanos)
+						_maxLagNanos = lag;
+					// Room for a blocked engine
+					notifyAll();
+				}
+				_listener.onDelta(delta);
+				synchronized(this){
+					_delivered++;
+				}
+			}
+		} finally {
+			if(!done){
+				// The listener failed: let a new task carry on with the rest of the queue
+				boolean submit;
+				synchronized(this){
+					submit = _count > 0 && !_cancelled;
+					_delivering = submit;
+				}
+				if(submit)
+					_executor.execute(_deliveryTask);
+			}
+		}
+	}
+
+	/**
+	 * Called before the engine stops the scan and waits for the thread delivering the deltas. Until
+	 * {@link #endClose()}, a full queue drops instead of blocking, and a blocked delivery is released.
+	 */
+	synchronized void beginClose(){
+		_closing++;
+		notifyAll();
+	}
+
+	/**
+	 * Called once the scan is stopped, blocking again on a full queue
+	 */
+	synchronized void endClose(){
+		_closing--;
+	}
+
+	/**
+	 * Stops the deliveries, discarding the queued deltas. A delta being delivered completes.
+	 */
+	public void cancel(){
+		synchronized(this){
+			_cancelled = true;
+			for(int i=0;i<_queue.length;i++)
+				_queue[i] = null;
+			_count = 0;
+			notifyAll();
+		}
+		_engine.unsubscribe(this);
+	}
+
+	public boolean isCancelled(){
+		return _cancelled;
+	}
+
+	public IBeaconBatchListener getListener(){
+		return _listener;
+	}
+
+	public int getCapacity(){
+		return _queue.length;
+	}
+
+	public int getOverflowPolicy(){
+		return _overflowPolicy;
+	}
+
+	/**
+	 * @return the number of deltas waiting to be delivered
+	 */
+	public synchronized int getQueued(){
+		return _count;
+	}
+
+	/**
+	 * @return the highest number of deltas waiting at once
+	 */
+	public synchronized int getMaxQueued(){
+		return _maxQueued;
+	}
+
+	/**
+	 * @return the time the oldest waiting delta has been queued, in nanoseconds, 0 if none
+	 */
+	public synchronized long getLagNanos(){
+		return _count == 0 ? 0 : _clock.nanoTime() - _queuedAt[_head];
+	}
+
+	/**
+	 * @return the time the last delivered delta spent queued, in nanoseconds
+	 */
+	public synchronized long getLastLagNanos(){
+		return _lastLagNanos;
+	}
+
+	/**
+	 * @return the longest time a delivered delta spent queued, in nanoseconds
+	 */
+	public synchronized long getMaxLagNanos(){
+		return _maxLagNanos;
+	}
+
+	public synchronized long getDelivered(){
+		return _delivered;
+	}
+
+	/**
+	 * @return the deltas discarded with <code>OVERFLOW_DROP</code>
+	 */
+	public synchronized long getDropped(){
+		return _dropped;
+	}
+
+	/**
+	 * @return the deltas merged with <code>OVERFLOW_COALESCE</code>
+	 */
+	public synchronized long getCoalesced(){
+		return _coalesced;
+	}
+
+	/**
+	 * @return the times the engine had to wait with <code>OVERFLOW_BLOCK</code>
+	 */
+	public synchronized long getBlocked(){
+		return _blocked;
+	}
+}
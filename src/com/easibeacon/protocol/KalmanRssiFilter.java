@@ -0,0 +1,98 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.easibeacon.protocol;
+
+/**
+ * One-dimensional Kalman filter of the RSSI, modelling it as a constant disturbed by process noise
+ * 
+ * @author inakivazquez
+ *
+ */
+public class KalmanRssiFilter implements RssiFilter {
+
+	/**
+	 * Variance added to the estimate between samples
+	 */
+	private final double _processNoise;
+
+	/**
+	 * Variance of the RSSI measures
+	 */
+	private final double _measurementNoise;
+
+	private double _value;
+
+	/**
+	 * Variance of the current estimate
+	 */
+	private double _covariance;
+
+	private boolean _initialized = false;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param processNoise variance added to the estimate between samples, higher values follow changes faster
+	 * @param measurementNoise variance of the RSSI measures
+	 */
+	public KalmanRssiFilter(double processNoise, double measurementNoise){
+		if(processNoise < 0 || measurementNoise <= 0)
+			throw new IllegalArgumentException("Invalid noise: " + processNoise + ", " + measurementNoise);
+		_processNoise = processNoise;
+		_measurementNoise = measurementNoise;
+	}
+
+	@Override
+	public double filter(int rssi, long timestampNanos) {
+		if(!_initialized){
+			_value = rssi;
+			_covariance = _measurementNoise;
+			_initialized = true;
+			return _value;
+		}
+		// Predict
+		double covariance = _covariance + _processNoise;
+		// Update
+		double gain = covariance / (covariance + _measurementNoise);
+		_value += gain * (rssi - _value);
+		_covariance = (1 - gain) * covariance;
+		return _value;
+	}
+
+	@Override
+	public double getValue() {
+		return _value;
+	}
+
+	@Override
+	public void reset() {
+		_value = 0;
+		_covariance = 0;
+		_initialized = false;
+	}
+
+	@Override
+	public RssiFilter copy() {
+		return new KalmanRssiFilter(_processNoise, _measurementNoise);
+	}
+}
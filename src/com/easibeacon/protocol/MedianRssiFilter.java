@@ -0,0 +1,115 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.easibeacon.protocol;
+
+/**
+ * Median of the RSSI over a fixed window of the latest samples, robust against isolated outliers
+ * 
+ * @author inakivazquez
+ *
+ */
+public class MedianRssiFilter implements RssiFilter {
+
+	/**
+	 * The latest samples, in arrival order
+	 */
+	private final int[] _window;
+
+	/**
+	 * The same samples, sorted
+	 */
+	private final int[] _sorted;
+
+	/**
+	 * Position of the next sample in <code>_window</code>
+	 */
+	private int _next;
+
+	private int _count;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param size number of samples in the window
+	 */
+	public MedianRssiFilter(int size){
+		if(size < 1)
+			throw new IllegalArgumentException("Invalid window size: " + size);
+		_window = new int[size];
+		_sorted = new int[size];
+	}
+
+	@Override
+	public double filter(int rssi, long timestampNanos) {
+		if(_count == _window.length){
+			// Remove the oldest sample from the sorted window
+			int i = indexOf(_window[_next]);
+			System.arraycopy(_sorted, i + 1, _sorted, i, _count - i - 1);
+			_count--;
+		}
+		_window[_next] = rssi;
+		_next = (_next + 1) % _window.length;
+		// Insert the new sample in order
+		int i = _count;
+		while(i > 0 && _sorted[i-1] > rssi){
+			_sorted[i] = _sorted[i-1];
+			i--;
+		}
+		_sorted[i] = rssi;
+		_count++;
+		return getValue();
+	}
+
+	@Override
+	public double getValue() {
+		if(_count == 0)
+			return 0;
+		int middle = _count >> 1;
+		if((_count & 1) == 1)
+			return _sorted[middle];
+		return (_sorted[middle - 1] + _sorted[middle]) / 2.0;
+	}
+
+	@Override
+	public void reset() {
+		_next = 0;
+		_count = 0;
+	}
+
+	@Override
+	public RssiFilter copy() {
+		return new MedianRssiFilter(_window.length);
+	}
+
+	private int indexOf(int rssi){
+		int low = 0, high = _count - 1;
+		while(low < high){
+			int middle = (low + high) >>> 1;
+			if(_sorted[middle] < rssi)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+}
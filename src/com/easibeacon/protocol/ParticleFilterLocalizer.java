@@ -0,0 +1,484 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.easibeacon.protocol;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Particle filter localizer, for venues where the trilateration of noisy distances is not steady enough.
+ * <p>
+ * The samples of the anchors only record their latest RSSI. Every estimate moves the particles with a random walk
+ * scaled by the time elapsed and weighs them by the likelihood of the RSSI of every anchor in view, under a log-distance
+ * path loss model. It then resamples them systematically. The position is the weighted mean of the particles, and the
+ * accuracy their spread.
+ * <p>
+ * The particles are kept as parallel primitive arrays, split into chunks. With an executor, the chunks are weighed
+ * and resampled in parallel, otherwise in the calling thread. More particles give a steadier position for more CPU.
+ * 
+ * @author inakivazquez
+ *
+ */
+public final class ParticleFilterLocalizer implements PositionEstimator {
+
+	public static final int DEFAULT_PARTICLES = 1000;
+
+	/**
+	 * Default walking speed in metres per second, the scale of the random walk
+	 */
+	public static final double DEFAULT_SPEED = 1.4;
+
+	/**
+	 * Default standard deviation of the RSSI around the path loss model, in dB
+	 */
+	public static final double DEFAULT_RSSI_SIGMA = 6;
+
+	/**
+	 * Default path loss exponent, 2 in free space
+	 */
+	public static final double DEFAULT_PATH_LOSS_EXPONENT = 2;
+
+	/**
+	 * Margin around the anchors where the particles can be, in metres
+	 */
+	private static final double MARGIN = 2;
+
+	/**
+	 * Distance below which the path loss model is not applied, in metres
+	 */
+	private static final double MIN_DISTANCE = 0.1;
+
+	private final FloorMap _map;
+
+	private final int _particles;
+
+	/**
+	 * Particle state, struct of arrays; the next arrays receive the resampled particles
+	 */
+	private double[] _xs;
+
+	private double[] _ys;
+
+	private double[] _nextXs;
+
+	private double[] _nextYs;
+
+	/**
+	 * Log-likelihood of every particle, then its weight accumulated within its chunk
+	 */
+	private final double[] _weights;
+
+	/**
+	 * Latest RSSI and power at 1 meter of every anchor, and whether in view
+	 */
+	private final int[] _rssis;
+
+	private final int[] _txPowers;
+
+	private final boolean[] _inView;
+
+	/**
+	 * Anchors in view for the current estimate, with their coordinates
+	 */
+	private final int[] _active;
+
+	private int _activeCount;
+
+	private final double _minX, _minY, _maxX, _maxY;
+
+	private final Chunk[] _chunks;
+
+	private final List<Callable<Void>> _weighTasks = new ArrayList<Callable<Void>>();
+
+	private final List<Callable<Void>> _normalizeTasks = new ArrayList<Callable<Void>>();
+
+	private final List<Callable<Void>> _resampleTasks = new ArrayList<Callable<Void>>();
+
+	private ExecutorService _executor = null;
+
+	private double _speed = DEFAULT_SPEED;
+
+	private double _rssiSigma = DEFAULT_RSSI_SIGMA;
+
+	private double _pathLossExponent = DEFAULT_PATH_LOSS_EXPONENT;
+
+	/**
+	 * Values of the current estimate shared by the chunks
+	 */
+	private double _step;
+
+	private double _maxLog;
+
+	private double _total;
+
+	private double _offset;
+
+	private long _lastEstimate = -1;
+
+	/**
+	 * Constructor with one chunk per processor
+	 * 
+	 * @param map the anchors, not to be changed afterwards
+	 * @param particles the number of particles
+	 */
+	public ParticleFilterLocalizer(FloorMap map, int particles){
+		this(map, particles, Runtime.getRuntime().availableProcessors(), new Random());
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param map the anchors, not to be changed afterwards
+	 * @param particles the number of particles
+	 * @param chunks the number of chunks the particles are split into, the parallelism with an executor
+	 * @param random seeds the random generators of the chunks
+	 */
+	public ParticleFilterLocalizer(FloorMap map, int particles, int chunks, Random random){
+		if(particles <= 0 || chunks <= 0)
+			throw new IllegalArgumentException("Invalid particles: " + particles + "/" + chunks);
+		_map = map;
+		_particles = particles;
+		_xs = new double[particles];
+		_ys = new double[particles];
+		_nextXs = new double[particles];
+		_nextYs = new double[particles];
+		_weights = new double[particles];
+		int n = map.size();
+		_rssis = new int[n];
+		_txPowers = new int[n];
+		_inView = new boolean[n];
+		_active = new int[n];
+		double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+		for(int i=0;i<n;i++){
+			minX = Math.min(minX, map.getX(i));
+			minY = Math.min(minY, map.getY(i));
+			maxX = Math.max(maxX, map.getX(i));
+			maxY = Math.max(maxY, map.getY(i));
+		}
+		if(n == 0)
+			minX = minY = maxX = maxY = 0;
+		_minX = minX - MARGIN;
+		_minY = minY - MARGIN;
+		_maxX = maxX + MARGIN;
+		_maxY = maxY + MARGIN;
+		chunks = Math.min(chunks, particles);
+		_chunks = new Chunk[chunks];
+		for(int c=0;c<chunks;c++){
+			final Chunk chunk = new Chunk(particles * c / chunks, particles * (c + 1) / chunks, new Random(random.nextLong()));
+			_chunks[c] = chunk;
+			_weighTasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					chunk.weigh();
+					return null;
+				}
+			});
+			_normalizeTasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					chunk.normalize();
+					return null;
+				}
+			});
+			_resampleTasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					chunk.resample();
+					return null;
+				}
+			});
+			chunk.scatter();
+		}
+	}
+
+	/**
+	 * Sets the executor the chunks run on, for instance a fixed pool with one thread per processor
+	 * 
+	 * @param executor the executor, <code>null</code> to run them in the calling thread
+	 */
+	public void setExecutor(ExecutorService executor){
+		_executor = executor;
+	}
+
+	/**
+	 * Sets the maximum walking speed, in metres per second
+	 */
+	public void setSpeed(double speed){
+		_speed = speed;
+	}
+
+	/**
+	 * Sets the standard deviation of the RSSI around the path loss model, in dB
+	 */
+	public void setRssiSigma(double sigma){
+		_rssiSigma = sigma;
+	}
+
+	/**
+	 * Sets the path loss exponent, 2 in free space and usually between 2 and 4 indoors
+	 */
+	public void setPathLossExponent(double exponent){
+		_pathLossExponent = exponent;
+	}
+
+	public int getParticles(){
+		return _particles;
+	}
+
+	@Override
+	public FloorMap getFloorMap() {
+		return _map;
+	}
+
+	@Override
+	public void update(int anchor, int distanceCm, int rssi, int txPower, long timestampNanos) {
+		_rssis[anchor] = rssi;
+		_txPowers[anchor] = txPower;
+		_inView[anchor] = true;
+	}
+
+	@Override
+	public void remove(int anchor) {
+		_inView[anchor] = false;
+	}
+
+	@Override
+	public Position estimate(long timestampNanos) {
+		_activeCount = 0;
+		for(int i=0;i<_inView.length;i++){
+			if(_inView[i])
+				_active[_activeCount++] = i;
+		}
+		if(_activeCount == 0)
+			return null;
+		double seconds = _lastEstimate < 0 ? 0 : (timestampNanos - _lastEstimate) / 1e9;
+		_lastEstimate = timestampNanos;
+		_step = _speed * seconds;
+
+		if(!run(_weighTasks))
+			return null;
+		_maxLog = Double.NEGATIVE_INFINITY;
+		for(int c=0;c<_chunks.length;c++)
+			_maxLog = Math.max(_maxLog, _chunks[c].maxLog);
+		if(!run(_normalizeTasks))
+			return null;
+		double sum = 0, sx = 0, sy = 0, sxx = 0, syy = 0;
+		for(int c=0;c<_chunks.length;c++){
+			Chunk chunk = _chunks[c];
+			chunk.offset = sum;
+			sum += chunk.sum;
+			sx += chunk.sx;
+			sy += chunk.sy;
+			sxx += chunk.sxx;
+			syy += chunk.syy;
+		}
+		if(!(sum > 0)){
+			// Lost track, start over
+			for(int c=0;c<_chunks.length;c++)
+				_chunks[c].scatter();
+			return null;
+		}
+		double x = sx / sum, y = sy / sum;
+		double variance = Math.max(sxx / sum - x * x, 0) + Math.max(syy / sum - y * y, 0);
+
+		_total = sum;
+		_offset = _chunks[0].random.nextDouble() * sum / _particles;
+		if(!run(_resampleTasks))
+			return null;
+		double[] swap = _xs;
+		_xs = _nextXs;
+		_nextXs = swap;
+		swap = _ys;
+		_ys = _nextYs;
+		_nextYs = swap;
+		return new Position(x, y, Math.sqrt(variance), _activeCount, timestampNanos);
+	}
+
+	/**
+	 * Runs a task per chunk, on the executor if any
+	 * 
+	 * @return <code>false</code> if interrupted
+	 */
+	private boolean run(List<Callable<Void>> tasks){
+		ExecutorService executor = _executor;
+		try{
+			if(executor == null || tasks.size() == 1){
+				for(int i=0;i<tasks.size();i++)
+					tasks.get(i).call();
+			}else{
+				List<Future<Void>> futures = executor.invokeAll(tasks);
+				for(int i=0;i<futures.size();i++)
+					futures.get(i).get();
+			}
+			return true;
+		}catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			return false;
+		}catch(ExecutionException e){
+			throw new IllegalStateException(e.getCause());
+		}catch(Exception e){
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Range of particles processed together, with its own random generator and partial sums
+	 */
+	private final class Chunk {
+
+		final int from;
+
+		final int to;
+
+		final Random random;
+
+		double maxLog;
+
+		double sum, sx, sy, sxx, syy;
+
+		/**
+		 * Sum of the weights of the previous chunks
+		 */
+		double offset;
+
+		Chunk(int from, int to, Random random){
+			this.from = from;
+			this.to = to;
+			this.random = random;
+		}
+
+		/**
+		 * Spreads the particles uniformly over the map
+		 */
+		void scatter(){
+			for(int i=from;i<to;i++){
+				_xs[i] = _minX + random.nextDouble() * (_maxX - _minX);
+				_ys[i] = _minY + random.nextDouble() * (_maxY - _minY);
+			}
+		}
+
+		/**
+		 * Moves the particles and computes their log-likelihood
+		 */
+		void weigh(){
+			double[] xs = _xs, ys = _ys, weights = _weights;
+			double step = _step;
+			// Path loss in dB is 10 n log10(d), or 5 n log10(d^2)
+			double loss = 5 * _pathLossExponent;
+			double scale = -1 / (2 * _rssiSigma * _rssiSigma);
+			double minSquared = MIN_DISTANCE * MIN_DISTANCE;
+			double max = Double.NEGATIVE_INFINITY;
+			for(int i=from;i<to;i++){
+				double x = xs[i], y = ys[i];
+				if(step > 0){
+					x = Math.min(Math.max(x + random.nextGaussian() * step, _minX), _maxX);
+					y = Math.min(Math.max(y + random.nextGaussian() * step, _minY), _maxY);
+					xs[i] = x;
+					ys[i] = y;
+				}
+				double log = 0;
+				for(int k=0;k<_activeCount;k++){
+					int a = _active[k];
+					double dx = x - _map.getX(a), dy = y - _map.getY(a);
+					double squared = Math.max(dx * dx + dy * dy, minSquared);
+					double e = _rssis[a] - (_txPowers[a] - loss * Math.log10(squared));
+					log += scale * e * e;
+				}
+				weights[i] = log;
+				if(log > max)
+					max = log;
+			}
+			maxLog = max;
+		}
+
+		/**
+		 * Turns the log-likelihoods into weights accumulated within the chunk, and sums the moments
+		 */
+		void normalize(){
+			double[] xs = _xs, ys = _ys, weights = _weights;
+			double max = _maxLog;
+			double s = 0, x = 0, y = 0, xx = 0, yy = 0;
+			for(int i=from;i<to;i++){
+				double w = Math.exp(weights[i] - max);
+				s += w;
+				weights[i] = s;
+				x += w * xs[i];
+				y += w * ys[i];
+				xx += w * xs[i] * xs[i];
+				yy += w * ys[i] * ys[i];
+			}
+			sum = s;
+			sx = x;
+			sy = y;
+			sxx = xx;
+			syy = yy;
+		}
+
+		/**
+		 * Systematic resampling of the output positions of this chunk: output <code>j</code> takes the particle
+		 * where the cumulative weight reaches <code>offset + j * total / particles</code>
+		 */
+		void resample(){
+			double[] xs = _xs, ys = _ys, nextXs = _nextXs, nextYs = _nextYs, weights = _weights;
+			double spacing = _total / _particles;
+			Chunk[] chunks = _chunks;
+			int c = 0;
+			int i = 0;
+			for(int j=from;j<to;j++){
+				double u = _offset + j * spacing;
+				if(j == from){
+					// Find the chunk and then the particle of the first output
+					while(c < chunks.length - 1 && chunks[c].offset + chunks[c].sum <= u)
+						c++;
+					i = search(chunks[c], u - chunks[c].offset);
+				}
+				while(chunks[c].offset + weights[i] <= u && i < _particles - 1){
+					i++;
+					if(i == chunks[c].to)
+						c++;
+				}
+				nextXs[j] = xs[i];
+				nextYs[j] = ys[i];
+			}
+		}
+
+		/**
+		 * @return the first particle of a chunk whose accumulated weight is past a value
+		 */
+		private int search(Chunk chunk, double value){
+			int low = chunk.from, high = chunk.to - 1;
+			while(low < high){
+				int mid = (low + high) >>> 1;
+				if(_weights[mid] <= value)
+					low = mid + 1;
+				else
+					high = mid;
+			}
+			return low;
+		}
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.easibeacon.protocol;
+
+/**
+ * Position estimated by a {@link PositionEstimator}, in the coordinates of its {@link FloorMap}
+ * 
+ * @author inakivazquez
+ *
+ */
+public final class Position {
+
+	private final double _x;
+
+	private final double _y;
+
+	private final double _accuracy;
+
+	private final int _anchors;
+
+	private final long _timestampNanos;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param x the x coordinate in metres
+	 * @param y the y coordinate in metres
+	 * @param accuracy the estimated error in metres
+	 * @param anchors the number of anchors the position was estimated from
+	 * @param timestampNanos when the position was estimated, in the time base of the engine {@link Clock}
+	 */
+	public Position(double x, double y, double accuracy, int anchors, long timestampNanos){
+		_x = x;
+		_y = y;
+		_accuracy = accuracy;
+		_anchors = anchors;
+		_timestampNanos = timestampNanos;
+	}
+
+	public double getX() {
+		return _x;
+	}
+
+	public double getY() {
+		return _y;
+	}
+
+	/**
+	 * @return the estimated error in metres
+	 */
+	public double getAccuracy() {
+		return _accuracy;
+	}
+
+	/**
+	 * @return the number of anchors the position was estimated from
+	 */
+	public int getAnchors() {
+		return _anchors;
+	}
+
+	public long getTimestampNanos() {
+		return _timestampNanos;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("x:%.2f y:%.2f accuracy:%.2f anchors:%d", _x, _y, _accuracy, _anchors);
+	}
+}
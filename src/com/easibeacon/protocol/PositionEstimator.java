@@ -0,0 +1,65 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.easibeacon.protocol;
+
+/**
+ * Estimates a position from the iBeacons of a {@link FloorMap} in view, see
+ * {@link IBeaconEngine#setPositionEstimator(PositionEstimator, long, PositionListener)}.
+ * The engine feeds every filtered sample of an anchor as it arrives, and asks for an estimate at the configured rate.
+ * All the methods are called with the engine lock held.
+ * 
+ * @author inakivazquez
+ *
+ */
+public interface PositionEstimator {
+
+	/**
+	 * @return the map with the anchors
+	 */
+	public FloorMap getFloorMap();
+
+	/**
+	 * Called with every new sample of an anchor
+	 * 
+	 * @param anchor the index of the anchor in the map
+	 * @param distanceCm the filtered distance in centimetres, -1 if unknown
+	 * @param rssi the filtered RSSI
+	 * @param txPower the RSSI of the anchor at 1 meter
+	 * @param timestampNanos the time of the sample
+	 */
+	public void update(int anchor, int distanceCm, int rssi, int txPower, long timestampNanos);
+
+	/**
+	 * Called when an anchor is no longer in view
+	 * 
+	 * @param anchor the index of the anchor in the map
+	 */
+	public void remove(int anchor);
+
+	/**
+	 * Estimates the position from the samples so far
+	 * 
+	 * @param timestampNanos the current time
+	 * @return the position, <code>null</code> if it cannot be estimated with the anchors in view
+	 */
+	public Position estimate(long timestampNanos);
+}
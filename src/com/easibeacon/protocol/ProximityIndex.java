@@ -0,0 +1,255 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.easibeacon.protocol;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Keeps the registry entries ordered by proximity, nearest first.
+ * When the proximity of an entry changes only that entry is moved, instead of sorting the whole set again.
+ * Each entry remembers its own position, so finding it is immediate.
+ * Within a batch the entries are only marked as changed, and the order is restored once when the batch ends.
+ * <p>
+ * A sorted array is used rather than a skip list or a heap: the top-k reads of the engine and
+ * {@link #toArray()} walk it directly, with no node allocation per entry. The cost is in the writes. Moving
+ * an entry shifts the entries it passes, so an update costs O(distance moved). Filtered distances change
+ * by small steps, so that distance is usually a few slots. Removing an entry shifts the tail, so the entries
+ * expired in a tick are removed together with {@link #removeAll(List)}, in a single O(n) pass.
+ * 
+ * @author inakivazquez
+ *
+ */
+final class ProximityIndex {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private IBeaconEntry[] _entries = new IBeaconEntry[INITIAL_CAPACITY];
+
+	private int _size;
+
+	/**
+	 * Incremented on every change of the order, so that readers outside the lock can tell a stale copy
+	 */
+	private volatile int _version;
+
+	/**
+	 * <code>true</code> between {@link #beginBatch()} and {@link #endBatch()}
+	 */
+	private boolean _batch;
+
+	/**
+	 * Entries added or updated during the current batch
+	 */
+	private int _dirty;
+
+	/**
+	 * Above this share of changed entries a batch is sorted instead of moving the entries one by one
+	 */
+	private static final int FULL_SORT_RATIO = 8;
+
+	private static final Comparator<IBeaconEntry> BY_PROXIMITY = new Comparator<IBeaconEntry>() {
+		@Override
+		public int compare(IBeaconEntry a, IBeaconEntry b) {
+			int pa = a.ibeacon.getProximityCm();
+			int pb = b.ibeacon.getProximityCm();
+			return pa < pb ? -1 : (pa == pb ? 0 : 1);
+		}
+	};
+
+	/**
+	 * Inserts a new entry at its place
+	 * 
+	 * @param e the entry to add
+	 */
+	public void add(IBeaconEntry e){
+		if(_size == _entries.length){
+			IBeaconEntry[] entries = new IBeaconEntry[_size << 1];
+			System.arraycopy(_entries, 0, entries, 0, _size);
+			_entries = entries;
+		}
+		_entries[_size] = e;
+		e.proximityIndex = _size;
+		_size++;
+		if(_batch)
+			_dirty++;
+		else
+			moveUp(e);
+		_version++;
+	}
+
+	/**
+	 * Moves an entry to its new place after its proximity has changed
+	 * 
+	 * @param e the entry updated
+	 */
+	public void update(IBeaconEntry e){
+		if(_batch){
+			_dirty++;
+			return;
+		}
+		if(moveUp(e) || moveDown(e))
+			_version++;
+	}
+
+	/**
+	 * Starts a batch of changes. Until {@link #endBatch()} the order is not kept.
+	 */
+	public void beginBatch(){
+		_batch = true;
+		_dirty = 0;
+	}
+
+	/**
+	 * Ends a batch of changes, restoring the order once for all of them
+	 */
+	public void endBatch(){
+		_batch = false;
+		if(_dirty == 0)
+			return;
+		if(_dirty * FULL_SORT_RATIO > _size){
+			Arrays.sort(_entries, 0, _size, BY_PROXIMITY);
+			for(int i=0;i<_size;i++)
+				_entries[i].proximityIndex = i;
+		}else{
+			// Few changes, the rest is in order: an insertion pass only moves the changed entries
+			for(int i=1;i<_size;i++)
+				moveUp(_entries[i]);
+		}
+		_dirty = 0;
+		_version++;
+	}
+
+	/**
+	 * Removes several entries from the index, compacting it once for all of them
+	 * 
+	 * @param removed the entries to remove, those not in the index are ignored
+	 */
+	public void removeAll(List<IBeaconEntry> removed){
+		int first = _size;
+		for(int k=0;k<removed.size();k++){
+			IBeaconEntry e = removed.get(k);
+			int i = e.proximityIndex;
+			if(i < 0 || i >= _size || _entries[i] != e)
+				continue;
+			// Marked as removed, compacted below
+			e.proximityIndex = -1;
+			if(i < first)
+				first = i;
+		}
+		if(first == _size)
+			return;
+		int j = first;
+		for(int i=first;i<_size;i++){
+			IBeaconEntry e = _entries[i];
+			if(e.proximityIndex < 0)
+				continue;
+			_entries[j] = e;
+			e.proximityIndex = j;
+			j++;
+		}
+		for(int i=j;i<_size;i++)
+			_entries[i] = null;
+		_size = j;
+		_version++;
+	}
+
+	public int size(){
+		return _size;
+	}
+
+	/**
+	 * @return the number of changes of the order so far, readable without the lock
+	 */
+	public int getVersion(){
+		return _version;
+	}
+
+	/**
+	 * @return the nearest iBeacon, or <code>null</code> if the index is empty
+	 */
+	public IBeacon nearest(){
+		return _size == 0 ? null : _entries[0].ibeacon;
+	}
+
+	/**
+	 * @return the entry of the nearest iBeacon, or <code>null</code> if the index is empty
+	 */
+	public IBeaconEntry nearestEntry(){
+		return _size == 0 ? null : _entries[0];
+	}
+
+	/**
+	 * @return the entry at a position of the order, nearest first
+	 */
+	public IBeaconEntry entryAt(int i){
+		return _entries[i];
+	}
+
+	/**
+	 * @return a new array with all the iBeacons, nearest first
+	 */
+	public IBeacon[] toArray(){
+		IBeacon[] array = new IBeacon[_size];
+		for(int i=0;i<_size;i++)
+			array[i] = _entries[i].ibeacon;
+		return array;
+	}
+
+	public void clear(){
+		for(int i=0;i<_size;i++){
+			_entries[i].proximityIndex = -1;
+			_entries[i] = null;
+		}
+		_size = 0;
+		_version++;
+	}
+
+	private boolean moveUp(IBeaconEntry e){
+		int i = e.proximityIndex;
+		int key = e.ibeacon.getProximityCm();
+		int start = i;
+		while(i > 0 && _entries[i-1].ibeacon.getProximityCm() > key){
+			_entries[i] = _entries[i-1];
+			_entries[i].proximityIndex = i;
+			i--;
+		}
+		_entries[i] = e;
+		e.proximityIndex = i;
+		return i != start;
+	}
+
+	private boolean moveDown(IBeaconEntry e){
+		int i = e.proximityIndex;
+		int key = e.ibeacon.getProximityCm();
+		int start = i;
+		while(i < _size - 1 && _entries[i+1].ibeacon.getProximityCm() < key){
+			_entries[i] = _entries[i+1];
+			_entries[i].proximityIndex = i;
+			i++;
+		}
+		_entries[i] = e;
+		e.proximityIndex = i;
+		return i != start;
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.easibeacon.protocol;
+
+/**
+ * Boundaries of the proximity zones of an iBeacon, immediate, near and far, with a hysteresis margin around them.
+ * A beacon only moves to another zone once its distance goes past the boundary by the margin, so the RSSI noise
+ * around a boundary does not make it flicker between two zones.
+ * 
+ * @author inakivazquez
+ *
+ */
+public final class ProximityZones {
+
+	/**
+	 * Default zones: immediate under 0.5 m, near under 3 m, far beyond, with a 0.25 m margin
+	 */
+	public static final ProximityZones DEFAULT = new ProximityZones(50, 300, 25);
+
+	private final int _immediateCm;
+
+	private final int _nearCm;
+
+	private final int _hysteresisCm;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param immediateCm the distance in centimetres below which a beacon is immediate
+	 * @param nearCm the distance in centimetres below which a beacon is near, far beyond
+	 * @param hysteresisCm how far past a boundary the distance has to go to change the zone
+	 */
+	public ProximityZones(int immediateCm, int nearCm, int hysteresisCm){
+		if(immediateCm <= 0 || nearCm <= immediateCm || hysteresisCm < 0)
+			throw new IllegalArgumentException("Invalid zones: " + immediateCm + "/" + nearCm + "/" + hysteresisCm);
+		_immediateCm = immediateCm;
+		_nearCm = nearCm;
+		_hysteresisCm = hysteresisCm;
+	}
+
+	public int getImmediateCm() {
+		return _immediateCm;
+	}
+
+	public int getNearCm() {
+		return _nearCm;
+	}
+
+	public int getHysteresisCm() {
+		return _hysteresisCm;
+	}
+
+	/**
+	 * Classifies a distance, keeping the current zone until the distance is past its boundaries by the margin
+	 * 
+	 * @param zone the current zone of the beacon, one of the <code>ZONE_</code> constants of {@link IBeacon}
+	 * @param distanceCm the distance in centimetres, -1 if unknown
+	 * @return the new zone
+	 */
+	public int classify(int zone, int distanceCm){
+		if(distanceCm < 0)
+			return IBeacon.ZONE_UNKNOWN;
+		int raw = zoneOf(distanceCm);
+		if(zone == IBeacon.ZONE_UNKNOWN || raw == zone)
+			return raw;
+		if(raw > zone)
+			return Math.max(zoneOf(distanceCm - _hysteresisCm), zone);
+		return Math.min(zoneOf(distanceCm + _hysteresisCm), zone);
+	}
+
+	private int zoneOf(int distanceCm){
+		if(distanceCm < _immediateCm)
+			return IBeacon.ZONE_IMMEDIATE;
+		return distanceCm < _nearCm ? IBeacon.ZONE_NEAR : IBeacon.ZONE_FAR;
+	}
+
+	@Override
+	public String toString() {
+		return "immediate:" + _immediateCm + " near:" + _nearCm + " hysteresis:" + _hysteresisCm;
+	}
+}
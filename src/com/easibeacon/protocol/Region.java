@@ -0,0 +1,160 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.easibeacon.protocol;
+
+/**
+ * Region to be monitored, matching the iBeacons of a UUID, of a UUID and major, or a single UUID, major and minor.
+ * 
+ * @author inakivazquez
+ *
+ */
+public final class Region {
+
+	/**
+	 * Major or minor matching any value
+	 */
+	public static final int ANY = -1;
+
+	private final String _identifier;
+
+	private final long _uuidMsb;
+
+	private final long _uuidLsb;
+
+	private final int _major;
+
+	private final int _minor;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param identifier the name of the region, for the application
+	 * @param uuid the UUID of the iBeacons
+	 * @param major the major number, or <code>ANY</code>
+	 * @param minor the minor number, or <code>ANY</code>. Must be <code>ANY</code> if the major is.
+	 */
+	public Region(String identifier, byte[] uuid, int major, int minor){
+		this(identifier, readUuid(uuid, 0), readUuid(uuid, 8), major, minor);
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param identifier the name of the region, for the application
+	 * @param uuidMsb the first 8 bytes of the UUID, big endian
+	 * @param uuidLsb the last 8 bytes of the UUID, big endian
+	 * @param major the major number, or <code>ANY</code>
+	 * @param minor the minor number, or <code>ANY</code>. Must be <code>ANY</code> if the major is.
+	 */
+	public Region(String identifier, long uuidMsb, long uuidLsb, int major, int minor){
+		if(major < ANY || major > 0xffff || minor < ANY || minor > 0xffff || (major == ANY && minor != ANY))
+			throw new IllegalArgumentException("Invalid region: " + major + "/" + minor);
+		_identifier = identifier;
+		_uuidMsb = uuidMsb;
+		_uuidLsb = uuidLsb;
+		_major = major;
+		_minor = minor;
+	}
+
+	private static long readUuid(byte[] uuid, int offset){
+		if(uuid == null || uuid.length != IBeaconEngine.ADV_UUID_LENGTH)
+			throw new IllegalArgumentException("Invalid UUID");
+		return Utils.readLong(uuid, offset);
+	}
+
+	public String getIdentifier() {
+		return _identifier;
+	}
+
+	/**
+	 * @return the first 8 bytes of the UUID, big endian
+	 */
+	public long getUuidMostSignificantBits() {
+		return _uuidMsb;
+	}
+
+	/**
+	 * @return the last 8 bytes of the UUID, big endian
+	 */
+	public long getUuidLeastSignificantBits() {
+		return _uuidLsb;
+	}
+
+	/**
+	 * @return the major number, <code>ANY</code> for a UUID region
+	 */
+	public int getMajor() {
+		return _major;
+	}
+
+	/**
+	 * @return the minor number, <code>ANY</code> for a UUID or a UUID and major region
+	 */
+	public int getMinor() {
+		return _minor;
+	}
+
+	/**
+	 * @return 0 for a UUID region, 1 for a UUID and major region, 2 for a single iBeacon region
+	 */
+	int getLevel() {
+		return _major == ANY ? 0 : (_minor == ANY ? 1 : 2);
+	}
+
+	/**
+	 * @return the major and minor packed as in {@link IBeacon#getMajorMinor()}, with the unused parts set to ones
+	 */
+	int getKey() {
+		return _major == ANY ? -1 : (_major << 16) | (_minor & 0xffff);
+	}
+
+	/**
+	 * @return <code>true</code> if the iBeacon belongs to this region
+	 */
+	public boolean matches(IBeacon ibeacon) {
+		return ibeacon.getUuidMostSignificantBits() == _uuidMsb && ibeacon.getUuidLeastSignificantBits() == _uuidLsb
+				&& (_major == ANY || ibeacon.getMajor() == _major) && (_minor == ANY || ibeacon.getMinor() == _minor);
+	}
+
+	/**
+	 * Two regions are the same if UUID, major and minor are the same, whatever their identifiers
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if(obj == this)
+			return true;
+		if(!(obj instanceof Region))
+			return false;
+		Region region = (Region) obj;
+		return _uuidMsb == region._uuidMsb && _uuidLsb == region._uuidLsb && _major == region._major && _minor == region._minor;
+	}
+
+	@Override
+	public int hashCode() {
+		return RegionIndex.hash(getLevel(), _uuidMsb, _uuidLsb, getKey());
+	}
+
+	@Override
+	public String toString() {
+		return _identifier + " UUID:" + String.format("%016X%016X", _uuidMsb, _uuidLsb) + " M:" + _major + " m:" + _minor;
+	}
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.easibeacon.protocol;
+
+import java.util.ArrayList;
+
+/**
+ * Hash index of the monitored regions, tiered by UUID, by UUID and major and by UUID, major and minor.
+ * A sighting resolves to all of its regions with one lookup per tier, however many regions are monitored.
+ * 
+ * @author inakivazquez
+ *
+ */
+final class RegionIndex {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private static final float LOAD_FACTOR = 0.75f;
+
+	/**
+	 * A monitored region and the number of iBeacons in view inside it
+	 */
+	static final class Node {
+
+		final Region region;
+
+		final int level;
+
+		final long uuidMsb;
+
+		final long uuidLsb;
+
+		final int key;
+
+		final int hash;
+
+		Node next;
+
+		/**
+		 * iBeacons in view matching the region
+		 */
+		int inside;
+
+		/**
+		 * <code>true</code> once no longer monitored, for the entries still pointing to it
+		 */
+		boolean removed;
+
+		Node(Region region){
+			this.region = region;
+			this.level = region.getLevel();
+			this.uuidMsb = region.getUuidMostSignificantBits();
+			this.uuidLsb = region.getUuidLeastSignificantBits();
+			this.key = region.getKey();
+			this.hash = RegionIndex.hash(level, uuidMsb, uuidLsb, key);
+		}
+	}
+
+	private Node[] _buckets = new Node[INITIAL_CAPACITY];
+
+	private int _size;
+
+	/**
+	 * Finds the region of a tier
+	 * 
+	 * @param level 0 for UUID regions, 1 for UUID and major, 2 for UUID, major and minor
+	 * @param majorMinor the major and minor of the iBeacon, packed
+	 * @return the node of the region, <code>null</code> if not monitored
+	 */
+	public Node find(int level, long uuidMsb, long uuidLsb, int majorMinor){
+		int key = level == 0 ? -1 : (level == 1 ? majorMinor | 0xffff : majorMinor);
+		int h = hash(level, uuidMsb, uuidLsb, key);
+		for(Node n = _buckets[h & (_buckets.length - 1)]; n != null; n = n.next){
+			if(n.hash == h && n.key == key && n.level == level && n.uuidLsb == uuidLsb && n.uuidMsb == uuidMsb)
+				return n;
+		}
+		return null;
+	}
+
+	/**
+	 * Adds a region
+	 * 
+	 * @return the new node, or <code>null</code> if the same region was already monitored
+	 */
+	public Node add(Region region){
+		Node existing = find(region);
+		if(existing != null)
+			return null;
+		if(_size + 1 > _buckets.length * LOAD_FACTOR)
+			resize(_buckets.length << 1);
+		Node n = new Node(region);
+		int i = n.hash & (_buckets.length - 1);
+		n.next = _buckets[i];
+		_buckets[i] = n;
+		_size++;
+		return n;
+	}
+
+	/**
+	 * Removes a region
+	 * 
+	 * @return the removed node, <code>null</code> if not monitored
+	 */
+	public Node remove(Region region){
+		Node n = find(region);
+		if(n == null)
+			return null;
+		int i = n.hash & (_buckets.length - 1);
+		Node prev = null;
+		for(Node cur = _buckets[i]; cur != null; prev = cur, cur = cur.next){
+			if(cur == n){
+				if(prev == null)
+					_buckets[i] = cur.next;
+				else
+					prev.next = cur.next;
+				cur.next = null;
+				cur.removed = true;
+				_size--;
+				break;
+			}
+		}
+		return n;
+	}
+
+	public Node find(Region region){
+		int level = region.getLevel();
+		return find(level, region.getUuidMostSignificantBits(), region.getUuidLeastSignificantBits(), region.getKey());
+	}
+
+	public int size(){
+		return _size;
+	}
+
+	/**
+	 * Adds all the monitored regions to a list
+	 */
+	public void getRegions(ArrayList<Region> list){
+		for(int i=0;i<_buckets.length;i++){
+			for(Node n = _buckets[i]; n != null; n = n.next)
+				list.add(n.region);
+		}
+	}
+
+	/**
+	 * Adds the regions with iBeacons in view to a list and forgets those iBeacons
+	 */
+	public void clearInside(ArrayList<Region> exited){
+		for(int i=0;i<_buckets.length;i++){
+			for(Node n = _buckets[i]; n != null; n = n.next){
+				if(n.inside > 0)
+					exited.add(n.region);
+				n.inside = 0;
+			}
+		}
+	}
+
+	private void resize(int capacity){
+		Node[] old = _buckets;
+		_buckets = new Node[capacity];
+		for(int i=0;i<old.length;i++){
+			Node n = old[i];
+			while(n != null){
+				Node next = n.next;
+				int j = n.hash & (capacity - 1);
+				n.next = _buckets[j];
+				_buckets[j] = n;
+				n = next;
+			}
+		}
+	}
+
+	static int hash(int level, long uuidMsb, long uuidLsb, int key){
+		long h = (uuidMsb + level) * 0x9E3779B97F4A7C15L;
+		h = (h ^ uuidLsb) * 0x9E3779B97F4A7C15L;
+		h = (h ^ key) * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32));
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.easibeacon.protocol;
+
+import java.util.List;
+
+/**
+ * Decides the region of the nearest iBeacon with hysteresis, so that two iBeacons at similar distances do not
+ * make the region flap. A challenger only takes over when it is nearer than the current iBeacon by a margin,
+ * has been heard a minimum number of times and keeps ahead for the enter dwell time. The region is only left
+ * once its iBeacon has been gone for the exit dwell time.
+ * The engine evaluates it on every advertisement and expiry check, and the dwell times are measured in scanning
+ * time, so the time the radio rests between scan windows does not count.
+ * Not thread safe, the engine calls it while holding its lock.
+ * 
+ * @author inakivazquez
+ *
+ */
+public class RegionStateMachine {
+
+	private long _enterDwellNanos;
+
+	private long _exitDwellNanos;
+
+	private int _distanceMarginCm;
+
+	private int _rssiMarginDb;
+
+	private int _minSamples = 1;
+
+	/**
+	 * The iBeacon whose region we are in, <code>null</code> if none
+	 */
+	private IBeacon _current;
+
+	/**
+	 * The iBeacon trying to take over, and since when, <code>null</code> if none
+	 */
+	private IBeacon _challenger;
+
+	private long _challengerSince;
+
+	/**
+	 * Since when the current iBeacon is gone, -1 if present
+	 */
+	private long _goneSince = -1;
+
+	/**
+	 * @param millis how long a challenger must stay nearest before its region is entered, in scanning time
+	 */
+	public void setEnterDwell(long millis) {
+		_enterDwellNanos = Math.max(millis, 0) * 1000000L;
+	}
+
+	/**
+	 * @param millis how long the current iBeacon must be gone before its region is left, in scanning time
+	 */
+	public void setExitDwell(long millis) {
+		_exitDwellNanos = Math.max(millis, 0) * 1000000L;
+	}
+
+	/**
+	 * @param cm how much nearer than the current iBeacon a challenger must be, strictly, in centimetres, 0 for no
+	 * margin
+	 */
+	public void setDistanceMargin(int cm) {
+		_distanceMarginCm = Math.max(cm, 0);
+	}
+
+	/**
+	 * @param db how much stronger than the current iBeacon the filtered RSSI of a challenger must be, strictly, 0 for
+	 * no margin
+	 */
+	public void setRssiMargin(int db) {
+		_rssiMarginDb = Math.max(db, 0);
+	}
+
+	/**
+	 * @param samples the RSSI samples an iBeacon needs before its region can be entered
+	 */
+	public void setMinSamples(int samples) {
+		_minSamples = Math.max(samples, 1);
+	}
+
+	/**
+	 * @return the iBeacon whose region we are in, <code>null</code> if none
+	 */
+	public IBeacon getCurrent() {
+		return _current;
+	}
+
+	/**
+	 * @return <code>true</code> if a decision is waiting for a dwell time, so it must be evaluated again even if
+	 * nothing changes in view. The engine only evaluates it on the expiry ticks without expirations while pending.
+	 */
+	public boolean isPending() {
+		return _challenger != null || _goneSince >= 0;
+	}
+
+	/**
+	 * Evaluates the region after a change in the iBeacons in view
+	 * 
+	 * @param now the scanning time elapsed, in nanoseconds, only advancing while a scan window is open
+	 * @param nearest the nearest iBeacon, <code>null</code> if none in view
+	 * @param nearestSamples the RSSI samples received from the nearest iBeacon
+	 * @param currentPresent <code>true</code> if the iBeacon of the current region is still in view
+	 * @param exited receives the iBeacon whose region is left, if any
+	 * @param entered receives the iBeacon whose region is entered, if any
+	 */
+	public void evaluate(long now, IBeacon nearest, int nearestSamples, boolean currentPresent, List<IBeacon> exited, List<IBeacon> entered){
+		// The scanning time starts again with every scan, and so do the dwell times pending
+		if(_challenger != null && _challengerSince > now)
+			_challengerSince = now;
+		if(_goneSince > now)
+			_goneSince = now;
+		if(_current != null && currentPresent){
+			_goneSince = -1;
+		}else if(_current != null && _goneSince < 0){
+			_goneSince = now;
+		}
+		if(nearest == null || nearest.equals(_current) || nearestSamples < _minSamples || !beats(nearest)){
+			_challenger = null;
+		}else if(!nearest.equals(_challenger)){
+			_challenger = nearest;
+			_challengerSince = now;
+		}
+		if(_challenger != null && now - _challengerSince >= _enterDwellNanos){
+			// Roaming, or entering from nowhere
+			if(_current != null)
+				exited.add(_current);
+			entered.add(_challenger);
+			_current = _challenger;
+			_challenger = null;
+			_goneSince = -1;
+		}else if(_current != null && _goneSince >= 0 && now - _goneSince >= _exitDwellNanos){
+			exited.add(_current);
+			_current = null;
+			_goneSince = -1;
+		}
+	}
+
+	/**
+	 * Forgets the current region, in order to detect it again
+	 */
+	public void reset() {
+		_current = null;
+		_challenger = null;
+		_goneSince = -1;
+	}
+
+	private boolean beats(IBeacon challenger){
+		// Anything beats an iBeacon that is gone
+		if(_current == null || _goneSince >= 0)
+			return true;
+		// Strictly beyond the margin, meeting it is not enough
+		if(_distanceMarginCm > 0 && challenger.getProximityCm() >= _current.getProximityCm() - _distanceMarginCm)
+			return false;
+		if(_rssiMarginDb > 0 && challenger.getRssi() <= _current.getRssi() + _rssiMarginDb)
+			return false;
+		return true;
+	}
+}
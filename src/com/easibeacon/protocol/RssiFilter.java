@@ -0,0 +1,58 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.easibeacon.protocol;
+
+/**
+ * Smoothing strategy for the RSSI samples of one iBeacon.
+ * Every registry entry gets its own filter through {@link #copy()}, and the filters keep their state in primitive
+ * fields, so filtering a sample does not allocate.
+ * 
+ * @author inakivazquez
+ *
+ */
+public interface RssiFilter {
+
+	/**
+	 * Adds a new sample
+	 * 
+	 * @param rssi the measured RSSI
+	 * @param timestampNanos the time of the measure
+	 * @return the filtered RSSI
+	 */
+	public double filter(int rssi, long timestampNanos);
+
+	/**
+	 * @return the current filtered RSSI, 0 if there are no samples yet
+	 */
+	public double getValue();
+
+	/**
+	 * Discards all the samples
+	 */
+	public void reset();
+
+	/**
+	 * @return a new filter with the same configuration and no samples
+	 */
+	public RssiFilter copy();
+}
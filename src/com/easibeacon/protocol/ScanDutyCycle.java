@@ -0,0 +1,72 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.easibeacon.protocol;
+
+/**
+ * Scan duty cycle: the radio scans for <code>scanMillis</code>, then rests for <code>idleMillis</code>, and so on.
+ * 
+ * @author inakivazquez
+ *
+ */
+public final class ScanDutyCycle {
+
+	/**
+	 * Default cycle while the app is in the foreground: 1.1 s scanning every 5.1 s
+	 */
+	public static final ScanDutyCycle FOREGROUND = new ScanDutyCycle(1100, 4000);
+
+	/**
+	 * Default cycle while the app is in the background: 1.1 s scanning every minute
+	 */
+	public static final ScanDutyCycle BACKGROUND = new ScanDutyCycle(1100, 60000);
+
+	private final long _scanMillis;
+
+	private final long _idleMillis;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param scanMillis duration of every scan window in milliseconds
+	 * @param idleMillis rest between scan windows in milliseconds, 0 to scan without rest
+	 */
+	public ScanDutyCycle(long scanMillis, long idleMillis){
+		if(scanMillis <= 0 || idleMillis < 0)
+			throw new IllegalArgumentException("Invalid duty cycle: " + scanMillis + "/" + idleMillis);
+		_scanMillis = scanMillis;
+		_idleMillis = idleMillis;
+	}
+
+	public long getScanMillis() {
+		return _scanMillis;
+	}
+
+	public long getIdleMillis() {
+		return _idleMillis;
+	}
+
+	@Override
+	public String toString() {
+		return "scan:" + _scanMillis + " idle:" + _idleMillis;
+	}
+}
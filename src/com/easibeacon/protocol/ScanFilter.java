@@ -0,0 +1,316 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.easibeacon.protocol;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * Immutable, compiled set of iBeacon filters: a set of UUIDs, each with optional major and minor ranges.
+ * The UUIDs are hashed on their two longs. When built, the ranges of each UUID are cut into disjoint major
+ * segments, each with its merged minor intervals, so matching an advertisement is a hash probe followed by one
+ * binary search on the major and one on the minor, without allocating. Overlapping major ranges with different
+ * minors multiply the segments, which only costs memory at build time.
+ * Build instances with {@link Builder}. Being immutable, a filter can be swapped while scanning.
+ * 
+ * @author inakivazquez
+ *
+ */
+public final class ScanFilter {
+
+	// Hash table of UUIDs, open addressing with linear probing
+	private final long[] _uuidMsb;
+
+	private final long[] _uuidLsb;
+
+	private final boolean[] _used;
+
+	/**
+	 * First major segment of every UUID in the segment arrays, and how many it has
+	 */
+	private final int[] _segmentStart;
+
+	private final int[] _segmentCount;
+
+	// Disjoint major segments, grouped by UUID and sorted. All the majors of a segment accept the same minors.
+	private final int[] _majorLow;
+
+	private final int[] _majorHigh;
+
+	/**
+	 * First minor interval of every segment in the minor arrays, and how many it has
+	 */
+	private final int[] _minorStart;
+
+	private final int[] _minorCount;
+
+	// Disjoint minor intervals accepted by every segment, sorted and merged
+	private final int[] _minorLow;
+
+	private final int[] _minorHigh;
+
+	private ScanFilter(Builder builder){
+		ArrayList<int[]> ranges = builder._ranges;
+		ArrayList<long[]> uuids = builder._uuids;
+		// Sort the ranges by UUID first and lowest major then
+		Integer[] order = new Integer[ranges.size()];
+		for(int i=0;i<order.length;i++)
+			order[i] = i;
+		final ArrayList<int[]> r = ranges;
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				int[] ra = r.get(a), rb = r.get(b);
+				if(ra[0] != rb[0])
+					return ra[0] < rb[0] ? -1 : 1;
+				return ra[1] < rb[1] ? -1 : (ra[1] == rb[1] ? 0 : 1);
+			}
+		});
+		// Cut the major axis of every UUID at the ends of its ranges, and merge the minors of each piece
+		ArrayList<int[]> segments = new ArrayList<int[]>();
+		ArrayList<int[]> minors = new ArrayList<int[]>();
+		int[] start = new int[uuids.size()];
+		int[] count = new int[uuids.size()];
+		for(int first=0;first<order.length;){
+			int uuid = ranges.get(order[first])[0];
+			int last = first;
+			while(last < order.length && ranges.get(order[last])[0] == uuid)
+				last++;
+			start[uuid] = segments.size();
+			segment(ranges, order, first, last, segments, minors);
+			count[uuid] = segments.size() - start[uuid];
+			first = last;
+		}
+		int n = segments.size();
+		_majorLow = new int[n];
+		_majorHigh = new int[n];
+		_minorStart = new int[n];
+		_minorCount = new int[n];
+		for(int i=0;i<n;i++){
+			int[] segment = segments.get(i);
+			_majorLow[i] = segment[0];
+			_majorHigh[i] = segment[1];
+			_minorStart[i] = segment[2];
+			_minorCount[i] = segment[3];
+		}
+		_minorLow = new int[minors.size()];
+		_minorHigh = new int[minors.size()];
+		for(int i=0;i<minors.size();i++){
+			_minorLow[i] = minors.get(i)[0];
+			_minorHigh[i] = minors.get(i)[1];
+		}
+		int size = Integer.highestOneBit(Math.max(uuids.size(), 1)) << 2;
+		_uuidMsb = new long[size];
+		_uuidLsb = new long[size];
+		_used = new boolean[size];
+		_segmentStart = new int[size];
+		_segmentCount = new int[size];
+		for(int u=0;u<uuids.size();u++){
+			long[] uuid = uuids.get(u);
+			int i = slot(uuid[0], uuid[1]);
+			while(_used[i])
+				i = (i + 1) & (size - 1);
+			_used[i] = true;
+			_uuidMsb[i] = uuid[0];
+			_uuidLsb[i] = uuid[1];
+			_segmentStart[i] = start[u];
+			_segmentCount[i] = count[u];
+		}
+	}
+
+	/**
+	 * Sweeps the ranges of one UUID, sorted by lowest major, into disjoint major segments as
+	 * {major low, major high, first minor, minor count}. Segments without any minor are left out.
+	 */
+	private static void segment(ArrayList<int[]> ranges, Integer[] order, int first, int last,
+			ArrayList<int[]> segments, ArrayList<int[]> minors){
+		int[] cuts = new int[(last - first) * 2];
+		for(int i=first;i<last;i++){
+			int[] range = ranges.get(order[i]);
+			cuts[(i - first) * 2] = range[1];
+			cuts[(i - first) * 2 + 1] = range[2] + 1;
+		}
+		Arrays.sort(cuts);
+		ArrayList<int[]> active = new ArrayList<int[]>();
+		int next = first;
+		for(int c=0;c<cuts.length - 1;c++){
+			int low = cuts[c], high = cuts[c + 1] - 1;
+			if(high < low)
+				continue;
+			while(next < last && ranges.get(order[next])[1] <= low)
+				active.add(ranges.get(order[next++]));
+			for(int i=active.size() - 1;i>=0;i--){
+				if(active.get(i)[2] < low)
+					active.remove(i);
+			}
+			if(active.isEmpty())
+				continue;
+			int[][] intervals = new int[active.size()][];
+			for(int i=0;i<intervals.length;i++)
+				intervals[i] = new int[]{active.get(i)[3], active.get(i)[4]};
+			Arrays.sort(intervals, new Comparator<int[]>() {
+				@Override
+				public int compare(int[] a, int[] b) {
+					return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+				}
+			});
+			int minorStart = minors.size();
+			int[] merged = intervals[0].clone();
+			for(int i=1;i<intervals.length;i++){
+				if(intervals[i][0] <= merged[1] + 1){
+					merged[1] = Math.max(merged[1], intervals[i][1]);
+				}else{
+					minors.add(merged);
+					merged = intervals[i].clone();
+				}
+			}
+			minors.add(merged);
+			segments.add(new int[]{low, high, minorStart, minors.size() - minorStart});
+		}
+	}
+
+	/**
+	 * Checks if an iBeacon passes the filter
+	 * 
+	 * @param uuidMsb the first 8 bytes of the UUID
+	 * @param uuidLsb the last 8 bytes of the UUID
+	 * @param major the major number
+	 * @param minor the minor number
+	 * @return <code>true</code> if the iBeacon matches any of the filters
+	 */
+	public boolean matches(long uuidMsb, long uuidLsb, int major, int minor){
+		int mask = _used.length - 1;
+		for(int i = slot(uuidMsb, uuidLsb); _used[i]; i = (i + 1) & mask){
+			if(_uuidMsb[i] == uuidMsb && _uuidLsb[i] == uuidLsb)
+				return matchesRange(_segmentStart[i], _segmentCount[i], major, minor);
+		}
+		return false;
+	}
+
+	private boolean matchesRange(int start, int count, int major, int minor){
+		int segment = floor(_majorLow, start, start + count, major);
+		if(segment < 0 || major > _majorHigh[segment])
+			return false;
+		int first = _minorStart[segment];
+		int interval = floor(_minorLow, first, first + _minorCount[segment], minor);
+		return interval >= 0 && minor <= _minorHigh[interval];
+	}
+
+	/**
+	 * @return the last index in <code>[from, to)</code> of a sorted array whose value is not above a key, -1 if none
+	 */
+	private static int floor(int[] sorted, int from, int to, int key){
+		int low = from, high = to;
+		while(low < high){
+			int middle = (low + high) >>> 1;
+			if(sorted[middle] <= key)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low == from ? -1 : low - 1;
+	}
+
+	private int slot(long uuidMsb, long uuidLsb){
+		long h = (uuidMsb ^ (uuidLsb * 0x9E3779B97F4A7C15L)) * 0x9E3779B97F4A7C15L;
+		return (int)(h >>> 32) & (_used.length - 1);
+	}
+
+	/**
+	 * Builds a {@link ScanFilter}
+	 */
+	public static class Builder {
+
+		private final ArrayList<long[]> _uuids = new ArrayList<long[]>();
+
+		/**
+		 * Position of every UUID in <code>_uuids</code>
+		 */
+		private final HashMap<UUID, Integer> _uuidIndex = new HashMap<UUID, Integer>();
+
+		/**
+		 * Ranges as {uuid index, major low, major high, minor low, minor high}
+		 */
+		private final ArrayList<int[]> _ranges = new ArrayList<int[]>();
+
+		/**
+		 * Accepts every iBeacon with the given UUID
+		 * 
+		 * @param uuid the UUID, 16 bytes
+		 * @return this builder
+		 */
+		public Builder addUuid(byte[] uuid){
+			return addRange(uuid, 0, 0xffff, 0, 0xffff);
+		}
+
+		/**
+		 * Accepts the iBeacons with the given UUID and a major number in a range
+		 * 
+		 * @param uuid the UUID, 16 bytes
+		 * @param majorLow the lowest major accepted
+		 * @param majorHigh the highest major accepted
+		 * @return this builder
+		 */
+		public Builder addMajorRange(byte[] uuid, int majorLow, int majorHigh){
+			return addRange(uuid, majorLow, majorHigh, 0, 0xffff);
+		}
+
+		/**
+		 * Accepts the iBeacons with the given UUID and major and minor numbers in ranges
+		 * 
+		 * @param uuid the UUID, 16 bytes
+		 * @param majorLow the lowest major accepted
+		 * @param majorHigh the highest major accepted
+		 * @param minorLow the lowest minor accepted
+		 * @param minorHigh the highest minor accepted
+		 * @return this builder
+		 */
+		public Builder addRange(byte[] uuid, int majorLow, int majorHigh, int minorLow, int minorHigh){
+			if(uuid == null || uuid.length != IBeaconEngine.ADV_UUID_LENGTH)
+				throw new IllegalArgumentException("Invalid UUID");
+			if(majorLow > majorHigh || minorLow > minorHigh)
+				throw new IllegalArgumentException("Invalid range");
+			long msb = Utils.readLong(uuid, 0);
+			long lsb = Utils.readLong(uuid, 8);
+			UUID key = new UUID(msb, lsb);
+			Integer index = _uuidIndex.get(key);
+			if(index == null){
+				index = _uuids.size();
+				_uuids.add(new long[]{msb, lsb});
+				_uuidIndex.put(key, index);
+			}
+			_ranges.add(new int[]{index, majorLow, majorHigh, minorLow, minorHigh});
+			return this;
+		}
+
+		/**
+		 * @return the compiled filter
+		 */
+		public ScanFilter build(){
+			return new ScanFilter(this);
+		}
+	}
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.easibeacon.protocol;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Preallocated single-producer/single-consumer ring buffer of advertisements.
+ * The producer (the Bluetooth callback thread) only copies the advertisement into a free slot, and the consumer
+ * drains the slots in batches on its own thread. No locks are taken and no objects are allocated once the slots
+ * have been sized.
+ * 
+ * @author inakivazquez
+ *
+ */
+public final class ScanRingBuffer {
+
+	/**
+	 * Overflow policy: when full, the oldest buffered advertisement is discarded to make room
+	 */
+	public static final int OVERFLOW_DROP_OLDEST = 1;
+
+	/**
+	 * Overflow policy: when full, the advertisement being offered is discarded
+	 */
+	public static final int OVERFLOW_DROP_NEWEST = 2;
+
+	/**
+	 * Overflow policy: when full, the producer waits until the consumer frees a slot
+	 */
+	public static final int OVERFLOW_BLOCK = 3;
+
+	/**
+	 * Usual length of a legacy BLE scan record
+	 */
+	private static final int DEFAULT_RECORD_LENGTH = 62;
+
+	private final int _mask;
+
+	private final int _overflowPolicy;
+
+	private final String[] _macs;
+
+	private final String[] _names;
+
+	private final int[] _rssis;
+
+	private final byte[][] _records;
+
+	private final long[] _timestamps;
+
+	/**
+	 * Sequence of the next slot to consume, only moved by the producer when dropping the oldest
+	 */
+	private final AtomicLong _head = new AtomicLong();
+
+	/**
+	 * Sequence of the next slot to produce
+	 */
+	private final AtomicLong _tail = new AtomicLong();
+
+	private final AtomicLong _droppedOldest = new AtomicLong();
+
+	private final AtomicLong _droppedNewest = new AtomicLong();
+
+	private final AtomicLong _blocked = new AtomicLong();
+
+	/**
+	 * <code>true</code> while there is no consumer, so that a blocked producer gives up
+	 */
+	private volatile boolean _closed = false;
+
+	/**
+	 * Record copied by the consumer before committing a slot, reused between advertisements
+	 */
+	private byte[] _scratch = new byte[DEFAULT_RECORD_LENGTH];
+
+	/**
+	 * Batch copied by the consumer before committing the slots, sized by the first batch drain
+	 */
+	private String[] _batchMacs;
+
+	private String[] _batchNames;
+
+	private int[] _batchRssis;
+
+	private byte[][] _batchRecords;
+
+	private long[] _batchTimestamps;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param capacity the number of slots, rounded up to a power of two
+	 * @param overflowPolicy one of <code>OVERFLOW_DROP_OLDEST</code>, <code>OVERFLOW_DROP_NEWEST</code> or <code>OVERFLOW_BLOCK</code>
+	 */
+	public ScanRingBuffer(int capacity, int overflowPolicy){
+		if(capacity < 1 || capacity > (1 << 30))
+			throw new IllegalArgumentException("Invalid capacity: " + capacity);
+		if(overflowPolicy < OVERFLOW_DROP_OLDEST || overflowPolicy > OVERFLOW_BLOCK)
+			throw new IllegalArgumentException("Invalid overflow policy: " + overflowPolicy);
+		int size = Integer.highestOneBit(capacity);
+		if(size < capacity)
+			size <<= 1;
+		_mask = size - 1;
+		_overflowPolicy = overflowPolicy;
+		_macs = new String[size];
+		_names = new String[size];
+		_rssis = new int[size];
+		_timestamps = new long[size];
+		_records = new byte[size][];
+		for(int i=0;i<size;i++)
+			_records[i] = new byte[DEFAULT_RECORD_LENGTH];
+	}
+
+	/**
+	 * Copies an advertisement into the buffer. Must only be called from the producer thread.
+	 * 
+	 * @return <code>true</code> if buffered, <code>false</code> if dropped
+	 */
+	public boolean offer(String macAddress, String name, int rssi, byte[] scanRecord, long timestampNanos){
+		long tail = _tail.get();
+		int capacity = _mask + 1;
+		boolean blocked = false;
+		long head;
+		while(tail - (head = _head.get()) >= capacity){
+			if(_overflowPolicy == OVERFLOW_DROP_NEWEST){
+				_droppedNewest.incrementAndGet();
+				return false;
+			}else if(_overflowPolicy == OVERFLOW_DROP_OLDEST){
+				if(_head.compareAndSet(head, head + 1))
+					_droppedOldest.incrementAndGet();
+			}else if(_closed){
+				_droppedNewest.incrementAndGet();
+				return false;
+			}else{
+				if(!blocked){
+					blocked = true;
+					_blocked.incrementAndGet();
+				}
+				LockSupport.parkNanos(1000L);
+			}
+		}
+		int i = (int)tail & _mask;
+		_macs[i] = macAddress;
+		_names[i] = name;
+		_rssis[i] = rssi;
+		_timestamps[i] = timestampNanos;
+		byte[] record = _records[i];
+		if(record.length != scanRecord.length){
+			record = new byte[scanRecord.length];
+			_records[i] = record;
+		}
+		System.arraycopy(scanRecord, 0, record, 0, scanRecord.length);
+		_tail.lazySet(tail + 1);
+		return true;
+	}
+
+	/**
+	 * Delivers the buffered advertisements to a callback. Must only be called from the consumer thread.
+	 * The record passed to the callback is only valid during the call.
+	 * 
+	 * @param callback the receiver of the advertisements
+	 * @param max the maximum number of advertisements to deliver
+	 * @return the number of advertisements delivered
+	 */
+	public int drain(ScanSource.Callback callback, int max){
+		int count = 0;
+		while(count < max){
+			long head = _head.get();
+			if(head >= _tail.get())
+				break;
+			int i = (int)head & _mask;
+			String mac = _macs[i];
+			String name = _names[i];
+			int rssi = _rssis[i];
+			long timestamp = _timestamps[i];
+			byte[] record = _records[i];
+			if(_scratch.length != record.length)
+				_scratch = new byte[record.length];
+			System.arraycopy(record, 0, _scratch, 0, record.length);
+			// If the producer dropped this slot meanwhile the copy may be torn, so it is discarded
+			if(!_head.compareAndSet(head, head + 1))
+				continue;
+			callback.onAdvertisement(mac, name, rssi, _scratch, timestamp);
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Delivers the buffered advertisements to a callback in one batch. Must only be called from the consumer thread.
+	 * The arrays passed to the callback are only valid during the call.
+	 * 
+	 * @param callback the receiver of the advertisements
+	 * @param max the maximum number of advertisements to deliver
+	 * @return the number of advertisements delivered
+	 */
+	public int drainBatch(ScanSource.BatchCallback callback, int max){
+		if(_batchMacs == null || _batchMacs.length < max){
+			_batchMacs = new String[max];
+			_batchNames = new String[max];
+			_batchRssis = new int[max];
+			_batchTimestamps = new long[max];
+			_batchRecords = new byte[max][];
+			for(int i=0;i<max;i++)
+				_batchRecords[i] = new byte[DEFAULT_RECORD_LENGTH];
+		}
+		int count = 0;
+		while(count < max){
+			long head = _head.get();
+			if(head >= _tail.get())
+				break;
+			int i = (int)head & _mask;
+			_batchMacs[count] = _macs[i];
+			_batchNames[count] = _names[i];
+			_batchRssis[count] = _rssis[i];
+			_batchTimestamps[count] = _timestamps[i];
+			byte[] record = _records[i];
+			if(_batchRecords[count].length != record.length)
+				_batchRecords[count] = new byte[record.length];
+			System.arraycopy(record, 0, _batchRecords[count], 0, record.length);
+			// If the producer dropped this slot meanwhile the copy may be torn, so it is discarded
+			if(!_head.compareAndSet(head, head + 1))
+				continue;
+			count++;
+		}
+		if(count > 0)
+			callback.onAdvertisements(_batchMacs, _batchNames, _batchRssis, _batchRecords, _batchTimestamps, 0, count);
+		return count;
+	}
+
+	/**
+	 * Marks whether a consumer is draining the buffer. While closed, <code>OVERFLOW_BLOCK</code> drops the newest
+	 * advertisement instead of waiting forever.
+	 * 
+	 * @param closed <code>true</code> if there is no consumer
+	 */
+	public void setClosed(boolean closed){
+		_closed = closed;
+	}
+
+	/**
+	 * @return <code>true</code> if there is nothing to consume
+	 */
+	public boolean isEmpty(){
+		return _head.get() >= _tail.get();
+	}
+
+	/**
+	 * @return the number of advertisements currently buffered
+	 */
+	public int size(){
+		return (int)Math.max(0, _tail.get() - _head.get());
+	}
+
+	public int getCapacity(){
+		return _mask + 1;
+	}
+
+	public int getOverflowPolicy(){
+		return _overflowPolicy;
+	}
+
+	/**
+	 * @return the advertisements discarded with <code>OVERFLOW_DROP_OLDEST</code>
+	 */
+	public long getDroppedOldest(){
+		return _droppedOldest.get();
+	}
+
+	/**
+	 * @return the advertisements discarded with <code>OVERFLOW_DROP_NEWEST</code>
+	 */
+	public long getDroppedNewest(){
+		return _droppedNewest.get();
+	}
+
+	/**
+	 * @return the times the producer had to wait with <code>OVERFLOW_BLOCK</code>
+	 */
+	public long getBlocked(){
+		return _blocked.get();
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.easibeacon.protocol;
+
+/**
+ * Source of BLE advertisements for the {@link IBeaconEngine}.
+ * On Android this is the Bluetooth adapter, but it can be any radio, a replay file or a load generator.
+ * 
+ * @author inakivazquez
+ *
+ */
+public interface ScanSource {
+
+	/**
+	 * Receiver of the advertisements reported by a {@link ScanSource}
+	 */
+	public interface Callback {
+
+		/**
+		 * Called for every advertisement received
+		 * 
+		 * @param macAddress the MAC address of the advertiser, in the form <code>AA:BB:CC:DD:EE:FF</code>
+		 * @param name the advertised device name, <code>null</code> if unknown or left to {@link ScanSource#getName(String)}
+		 * @param rssi the measured RSSI
+		 * @param scanRecord the raw advertisement data
+		 * @param timestampNanos reception time, in the time base of the engine {@link Clock}
+		 */
+		public void onAdvertisement(String macAddress, String name, int rssi, byte[] scanRecord, long timestampNanos);
+	}
+
+	/**
+	 * Receiver able to take the advertisements in batches, such as those buffered by a {@link BufferedScanCallback}
+	 */
+	public interface BatchCallback extends Callback {
+
+		/**
+		 * Called with a batch of advertisements, the arrays are only valid during the call
+		 * 
+		 * @param macAddresses the MAC addresses of the advertisers
+		 * @param names the advertised device names, <code>null</code> if none is known
+		 * @param rssis the measured RSSIs
+		 * @param scanRecords the raw advertisement data
+		 * @param timestampsNanos reception times, in the time base of the engine {@link Clock}
+		 * @param offset the index of the first advertisement in the arrays
+		 * @param count the number of advertisements
+		 */
+		public void onAdvertisements(String[] macAddresses, String[] names, int[] rssis, byte[][] scanRecords,
+				long[] timestampsNanos, int offset, int count);
+	}
+
+	/**
+	 * Starts reporting advertisements
+	 * 
+	 * @param callback the receiver of the advertisements
+	 * @return <code>true</code> if the scan could be started. <code>false</code> otherwise.
+	 */
+	public boolean start(Callback callback);
+
+	/**
+	 * Stops reporting advertisements
+	 */
+	public void stop();
+
+	/**
+	 * Resolves the name of an advertiser reported without one. It may be costly, so the engine only asks when it
+	 * finds a new iBeacon, never per advertisement.
+	 * 
+	 * @param macAddress the MAC address of the advertiser
+	 * @return the device name, <code>null</code> if unknown
+	 */
+	public String getName(String macAddress);
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.easibeacon.protocol;
+
+/**
+ * Runs the delayed tasks of the {@link IBeaconEngine}, such as the end of a scanning period
+ * 
+ * @author inakivazquez
+ *
+ */
+public interface Scheduler {
+
+	/**
+	 * Runs a task after a delay
+	 * 
+	 * @param task the task to run
+	 * @param delayMillis the delay in milliseconds
+	 */
+	public void schedule(Runnable task, long delayMillis);
+
+	/**
+	 * Cancels all the pending executions of a task
+	 * 
+	 * @param task the task to cancel
+	 */
+	public void cancel(Runnable task);
+}
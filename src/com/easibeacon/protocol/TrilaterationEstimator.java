@@ -0,0 +1,243 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.easibeacon.protocol;
+
+/**
+ * Weighted least squares trilateration over the filtered distances of the anchors in view.
+ * <p>
+ * Each anchor gives a circle equation, linear in <code>(x, y, x^2+y^2)</code>. The normal equations of those rows are
+ * sums over the anchors, so every sample only replaces the terms of its anchor and the linear solution is a 3x3
+ * system, whatever the number of anchors. It is then refined with a few Gauss-Newton iterations on the actual
+ * distances, and its accuracy is the residual of the anchors: each iteration, and the accuracy, is one pass over
+ * the anchors of the map. Closer anchors weigh more, as the error of the distance grows with it.
+ * All the state is allocated when created, solving does not allocate besides the returned {@link Position}.
+ * See <code>TrilaterationBench</code> for the costs from 3 to 50 anchors.
+ * 
+ * @author inakivazquez
+ *
+ */
+public final class TrilaterationEstimator implements PositionEstimator {
+
+	/**
+	 * Minimum number of anchors in view to estimate a position
+	 */
+	public static final int MIN_ANCHORS = 3;
+
+	public static final int DEFAULT_ITERATIONS = 3;
+
+	/**
+	 * Updates between full rebuilds of the sums, bounding the rounding error of replacing terms
+	 */
+	private static final int REBUILD_INTERVAL = 4096;
+
+	private final FloorMap _map;
+
+	/**
+	 * Anchor coordinates relative to the centroid of the map, for better conditioning
+	 */
+	private final double[] _xs;
+
+	private final double[] _ys;
+
+	private final double _centerX;
+
+	private final double _centerY;
+
+	/**
+	 * Distance in metres and weight of every anchor, weight 0 if not in view
+	 */
+	private final double[] _distances;
+
+	private final double[] _weights;
+
+	private int _anchors;
+
+	/**
+	 * Normal equations, upper half of the symmetric matrix and right hand side
+	 */
+	private double _a00, _a01, _a02, _a11, _a12, _a22;
+
+	private double _b0, _b1, _b2;
+
+	private int _updates;
+
+	private int _iterations = DEFAULT_ITERATIONS;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param map the anchors, not to be changed afterwards
+	 */
+	public TrilaterationEstimator(FloorMap map){
+		_map = map;
+		int n = map.size();
+		_xs = new double[n];
+		_ys = new double[n];
+		_distances = new double[n];
+		_weights = new double[n];
+		double cx = 0, cy = 0;
+		for(int i=0;i<n;i++){
+			cx += map.getX(i);
+			cy += map.getY(i);
+		}
+		_centerX = n == 0 ? 0 : cx / n;
+		_centerY = n == 0 ? 0 : cy / n;
+		for(int i=0;i<n;i++){
+			_xs[i] = map.getX(i) - _centerX;
+			_ys[i] = map.getY(i) - _centerY;
+		}
+	}
+
+	/**
+	 * Sets the number of Gauss-Newton iterations refining the linear solution
+	 * 
+	 * @param iterations the iterations, 0 for the linear solution only
+	 */
+	public void setIterations(int iterations){
+		if(iterations < 0)
+			throw new IllegalArgumentException("Invalid iterations: " + iterations);
+		_iterations = iterations;
+	}
+
+	@Override
+	public FloorMap getFloorMap() {
+		return _map;
+	}
+
+	@Override
+	public void update(int anchor, int distanceCm, int rssi, int txPower, long timestampNanos) {
+		if(distanceCm < 0){
+			remove(anchor);
+			return;
+		}
+		double d = distanceCm / 100.0;
+		if(_weights[anchor] > 0){
+			if(_distances[anchor] == d)
+				return;
+			accumulate(anchor, -1);
+		}else{
+			_anchors++;
+		}
+		_distances[anchor] = d;
+		_weights[anchor] = 1 / (1 + d * d);
+		accumulate(anchor, 1);
+		if(++_updates == REBUILD_INTERVAL)
+			rebuild();
+	}
+
+	@Override
+	public void remove(int anchor) {
+		if(_weights[anchor] == 0)
+			return;
+		accumulate(anchor, -1);
+		_weights[anchor] = 0;
+		_anchors--;
+	}
+
+	/**
+	 * Adds or subtracts the terms of an anchor, row <code>(-2x, -2y, 1)</code> and value <code>d^2-x^2-y^2</code>
+	 */
+	private void accumulate(int anchor, int sign){
+		double x = _xs[anchor], y = _ys[anchor], d = _distances[anchor];
+		double w = sign * _weights[anchor];
+		double r0 = -2 * x, r1 = -2 * y;
+		double b = d * d - x * x - y * y;
+		_a00 += w * r0 * r0;
+		_a01 += w * r0 * r1;
+		_a02 += w * r0;
+		_a11 += w * r1 * r1;
+		_a12 += w * r1;
+		_a22 += w;
+		_b0 += w * r0 * b;
+		_b1 += w * r1 * b;
+		_b2 += w * b;
+	}
+
+	private void rebuild(){
+		_a00 = _a01 = _a02 = _a11 = _a12 = _a22 = 0;
+		_b0 = _b1 = _b2 = 0;
+		for(int i=0;i<_weights.length;i++){
+			if(_weights[i] > 0)
+				accumulate(i, 1);
+		}
+		_updates = 0;
+	}
+
+	@Override
+	public Position estimate(long timestampNanos) {
+		if(_anchors < MIN_ANCHORS)
+			return null;
+		// Cramer's rule on the symmetric 3x3 system
+		double c00 = _a11 * _a22 - _a12 * _a12;
+		double c01 = _a02 * _a12 - _a01 * _a22;
+		double c02 = _a01 * _a12 - _a02 * _a11;
+		double det = _a00 * c00 + _a01 * c01 + _a02 * c02;
+		// Collinear anchors leave the system singular
+		if(Math.abs(det) <= 1e-12 * Math.abs(_a00 * _a11 * _a22))
+			return null;
+		double x = (_b0 * c00 + _b1 * c01 + _b2 * c02) / det;
+		double y = (_b0 * c01 + _b1 * (_a00 * _a22 - _a02 * _a02) + _b2 * (_a01 * _a02 - _a00 * _a12)) / det;
+		for(int k=0;k<_iterations;k++){
+			// Gauss-Newton step on the residuals |p - a| - d
+			double j00 = 0, j01 = 0, j11 = 0, g0 = 0, g1 = 0;
+			for(int i=0;i<_weights.length;i++){
+				double w = _weights[i];
+				if(w == 0)
+					continue;
+				double dx = x - _xs[i], dy = y - _ys[i];
+				double r = Math.sqrt(dx * dx + dy * dy);
+				if(r < 1e-6)
+					continue;
+				double ux = dx / r, uy = dy / r;
+				double e = r - _distances[i];
+				j00 += w * ux * ux;
+				j01 += w * ux * uy;
+				j11 += w * uy * uy;
+				g0 += w * ux * e;
+				g1 += w * uy * e;
+			}
+			double d = j00 * j11 - j01 * j01;
+			if(Math.abs(d) < 1e-12)
+				break;
+			x -= (j11 * g0 - j01 * g1) / d;
+			y -= (j00 * g1 - j01 * g0) / d;
+		}
+		return new Position(x + _centerX, y + _centerY, residual(x, y), _anchors, timestampNanos);
+	}
+
+	/**
+	 * @return the weighted RMS of the distance residuals at a point, the accuracy of the estimate
+	 */
+	private double residual(double x, double y){
+		double sum = 0, weights = 0;
+		for(int i=0;i<_weights.length;i++){
+			double w = _weights[i];
+			if(w == 0)
+				continue;
+			double dx = x - _xs[i], dy = y - _ys[i];
+			double e = Math.sqrt(dx * dx + dy * dy) - _distances[i];
+			sum += w * e * e;
+			weights += w;
+		}
+		return Math.sqrt(sum / weights);
+	}
+}
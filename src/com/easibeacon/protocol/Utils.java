@@ -27,4 +27,41 @@ public class Utils {
 	 */
 	public final static String LOG_TAG = "easiBeacon";	
 	
+	/**
+	 * Reads 8 bytes as a big endian long
+	 * 
+	 * @param data the source buffer
+	 * @param offset position of the first byte
+	 * @return the long value
+	 */
+	public static long readLong(byte[] data, int offset){
+		long l = 0;
+		for(int i=0;i<8;i++)
+			l = (l << 8) | (data[offset+i] & 0xff);
+		return l;
+	}
+	
+	/**
+	 * Packs a MAC address in the form <code>AA:BB:CC:DD:EE:FF</code> into the lower 48 bits of a long, without allocating
+	 * 
+	 * @param mac the MAC address
+	 * @return the packed address, or -1 if it cannot be parsed
+	 */
+	public static long macToLong(String mac){
+		if(mac == null)
+			return -1;
+		long l = 0;
+		int digits = 0;
+		for(int i=0;i<mac.length();i++){
+			int d = Character.digit(mac.charAt(i), 16);
+			if(d >= 0){
+				l = (l << 4) | d;
+				digits++;
+			}
+		}
+		if(digits != 12)
+			return -1;
+		return l;
+	}
+	
 }
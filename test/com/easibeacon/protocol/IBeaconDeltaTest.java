@@ -0,0 +1,149 @@
+/*
+ * Copyright 2014 Easi Technologies and Consulting Services, S.L.
+ *  
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package com.easibeacon.protocol;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checks that {@link IBeaconDelta#coalesce(IBeaconDelta, IBeaconDelta)} keeps the net effect per iBeacon and region.
+ * Run with a plain <code>main</code>, it fails with an {@link AssertionError}:
+ * <pre>
+ * javac -sourcepath src -d out test/com/easibeacon/protocol/*.java
+ * java -cp out com.easibeacon.protocol.IBeaconDeltaTest
+ * </pre>
+ * 
+ * @author inakivazquez
+ *
+ */
+public final class IBeaconDeltaTest {
+
+	private static final IBeacon A = new IBeacon(1, 1, 1, 1);
+
+	private static final IBeacon B = new IBeacon(2, 2, 2, 2);
+
+	private static final Region R = new Region("r", 1, 1, Region.ANY, Region.ANY);
+
+	public static void main(String[] args){
+		removedThenAdded();
+		addedThenRemoved();
+		addedThenUpdated();
+		updatedThenRemoved();
+		enteredThenExited();
+		System.out.println("IBeaconDeltaTest passed");
+	}
+
+	/**
+	 * Lost and found again: present at the end, so only found, and its zone change kept
+	 */
+	private static void removedThenAdded(){
+		IBeaconDelta older = delta(none(), none(), Arrays.asList(A), none(), Collections.<Region>emptyList());
+		IBeaconDelta newer = delta(samples(sample(A, 100, 1)), none(), Collections.<IBeacon>emptyList(),
+				samples(sample(A, 100, 1)), Collections.<Region>emptyList());
+		IBeaconDelta merged = IBeaconDelta.coalesce(older, newer);
+		check(beacons(merged.getAdded()).equals(Arrays.asList(A)), "added " + merged.getAdded());
+		check(merged.getRemoved().isEmpty(), "removed " + merged.getRemoved());
+		check(beacons(merged.getZoneChanged()).equals(Arrays.asList(A)), "zone changed " + merged.getZoneChanged());
+	}
+
+	/**
+	 * Found and lost again: as if never seen
+	 */
+	private static void addedThenRemoved(){
+		IBeaconDelta older = delta(samples(sample(A, 100, 1)), none(), Collections.<IBeacon>emptyList(),
+				samples(sample(A, 100, 1)), Collections.<Region>emptyList());
+		IBeaconDelta newer = delta(none(), none(), Arrays.asList(A), none(), Collections.<Region>emptyList());
+		IBeaconDelta merged = IBeaconDelta.coalesce(older, newer);
+		check(merged.isEmpty(), "not empty " + merged);
+	}
+
+	/**
+	 * Found and then updated: found, with the latest values
+	 */
+	private static void addedThenUpdated(){
+		IBeaconDelta older = delta(samples(sample(A, 100, 1)), none(), Collections.<IBeacon>emptyList(), none(),
+				Collections.<Region>emptyList());
+		IBeaconDelta newer = delta(none(), samples(sample(A, 400, 3)), Collections.<IBeacon>emptyList(), none(),
+				Collections.<Region>emptyList());
+		IBeaconDelta merged = IBeaconDelta.coalesce(older, newer);
+		check(merged.getAdded().size() == 1 && merged.getAdded().get(0).getProximityCm() == 400, "added " + merged.getAdded());
+		check(merged.getUpdated().isEmpty(), "updated " + merged.getUpdated());
+	}
+
+	/**
+	 * Updated and then lost: only lost, the other iBeacon untouched
+	 */
+	private static void updatedThenRemoved(){
+		IBeaconDelta older = delta(none(), samples(sample(A, 100, 1), sample(B, 200, 2)),
+				Collections.<IBeacon>emptyList(), samples(sample(A, 100, 1)), Collections.<Region>emptyList());
+		IBeaconDelta newer = delta(none(), none(), Arrays.asList(A), none(), Collections.<Region>emptyList());
+		IBeaconDelta merged = IBeaconDelta.coalesce(older, newer);
+		check(merged.getRemoved().equals(Arrays.asList(A)), "removed " + merged.getRemoved());
+		check(beacons(merged.getUpdated()).equals(Arrays.asList(B)), "updated " + merged.getUpdated());
+		check(merged.getZoneChanged().isEmpty(), "zone changed " + merged.getZoneChanged());
+	}
+
+	/**
+	 * A region entered and left again was never entered
+	 */
+	private static void enteredThenExited(){
+		IBeaconDelta older = delta(none(), none(), Collections.<IBeacon>emptyList(), none(), Arrays.asList(R));
+		IBeaconDelta newer = new IBeaconDelta(2, none(), none(), Collections.<IBeacon>emptyList(),
+				Collections.<IBeacon>emptyList(), Collections.<IBeacon>emptyList(), none(), Arrays.asList(R),
+				Collections.<Region>emptyList());
+		IBeaconDelta merged = IBeaconDelta.coalesce(older, newer);
+		check(merged.getRegionsEntered().isEmpty() && merged.getRegionsExited().isEmpty(), "regions " + merged);
+	}
+
+	private static IBeaconDelta delta(List<IBeaconSample> added, List<IBeaconSample> updated, List<IBeacon> removed,
+			List<IBeaconSample> zoneChanged, List<Region> regionsEntered){
+		return new IBeaconDelta(1, added, updated, removed, Collections.<IBeacon>emptyList(),
+				Collections.<IBeacon>emptyList(), zoneChanged, Collections.<Region>emptyList(), regionsEntered);
+	}
+
+	private static IBeaconSample sample(IBeacon ibeacon, int proximityCm, int zone){
+		return new IBeaconSample(ibeacon, proximityCm, -70, zone, 0);
+	}
+
+	private static List<IBeaconSample> samples(IBeaconSample... samples){
+		return Arrays.asList(samples);
+	}
+
+	private static List<IBeaconSample> none(){
+		return Collections.emptyList();
+	}
+
+	private static List<IBeacon> beacons(List<IBeaconSample> samples){
+		List<IBeacon> ibeacons = new ArrayList<IBeacon>();
+		for(int i=0;i<samples.size();i++)
+			ibeacons.add(samples.get(i).getIBeacon());
+		return ibeacons;
+	}
+
+	private static void check(boolean condition, String message){
+		if(!condition)
+			throw new AssertionError(message);
+	}
+}